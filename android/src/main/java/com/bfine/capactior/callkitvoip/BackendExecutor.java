@@ -0,0 +1,118 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared, bounded thread pool for all plugin-to-backend requests, so a burst of rejects reuses a few
+ * warm threads instead of starting one per request. Idle threads exit after a short keep-alive.
+ * Delayed work is timed on a single timer thread, which only hands work to the pool, so a slow
+ * request never holds up a timer.
+ */
+public final class BackendExecutor {
+    private static final String TAG = "BackendExecutor";
+    static final int MAX_THREADS = 4;
+    static final int MAX_QUEUED = 64;
+    static final long THREAD_KEEP_ALIVE_MS = 30_000;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+        MAX_THREADS, MAX_THREADS, THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(MAX_QUEUED),
+        runnable -> {
+            Thread thread = new Thread(runnable, "CallKitVoip-Backend-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "CallKitVoip-BackendTimer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Tasks handed to the pool that have not finished yet, guarded by idleLock. */
+    private static final Object idleLock = new Object();
+    private static int unfinishedTasks = 0;
+
+    static {
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    private BackendExecutor() {
+    }
+
+    /**
+     * Runs task on the pool. Returns false without running it if MAX_QUEUED tasks are already
+     * waiting; callers with durable work should leave it for a later retry.
+     */
+    public static boolean execute(Runnable task) {
+        synchronized (idleLock) {
+            unfinishedTasks++;
+        }
+        try {
+            pool.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    taskFinished();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            taskFinished();
+            Log.w(TAG, "Backend queue full, rejected task");
+            return false;
+        }
+    }
+
+    /**
+     * Runs task on the shared timer thread after delayMs. The task must be quick, e.g. deciding what
+     * to send and passing it to {@link #execute}; it must not do network I/O itself.
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return scheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Blocks until no task is queued or running on the pool. Work still waiting on the timer does not
+     * count. Returns false if the timeout elapsed first.
+     */
+    @VisibleForTesting
+    static boolean awaitIdle(long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (idleLock) {
+            try {
+                while (unfinishedTasks > 0) {
+                    long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMs <= 0) {
+                        return false;
+                    }
+                    idleLock.wait(remainingMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void taskFinished() {
+        synchronized (idleLock) {
+            unfinishedTasks--;
+            if (unfinishedTasks == 0) {
+                idleLock.notifyAll();
+            }
+        }
+    }
+}
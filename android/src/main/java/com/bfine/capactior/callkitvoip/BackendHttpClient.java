@@ -0,0 +1,157 @@
+package com.bfine.capactior.callkitvoip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Plain HTTP client for backend calls that keeps connections reusable. HttpURLConnection pools
+ * keep-alive connections per host, but only returns a socket to the pool once the response body has
+ * been read to the end and closed, and {@link HttpURLConnection#disconnect()} closes the socket
+ * outright. So responses are always drained and connections are never disconnected, letting a run
+ * of requests to the same backend share one TCP and TLS handshake. Each {@link Response} says
+ * whether the pool actually supplied the connection.
+ */
+public final class BackendHttpClient {
+    static final int CONNECT_TIMEOUT_MS = 10000;
+    static final int READ_TIMEOUT_MS = 10000;
+    /** Bodies larger than this are not worth reading just to keep the connection; it is closed instead. */
+    static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    /** Set on the sending thread when the TLS socket factory is asked for a new socket. */
+    private static final ThreadLocal<Boolean> openedSocket = new ThreadLocal<>();
+    private static volatile TrackingSocketFactory trackingFactory;
+
+    public static final class Response {
+        public final int code;
+        /**
+         * True when the request went over a pooled connection. Only HTTPS connections are tracked, so
+         * over plain HTTP this is always false.
+         */
+        public final boolean reusedConnection;
+
+        Response(int code, boolean reusedConnection) {
+            this.code = code;
+            this.reusedConnection = reusedConnection;
+        }
+    }
+
+    private BackendHttpClient() {
+    }
+
+    /** Sends a request without a body. */
+    public static Response send(String method, String url, Map<String, String> headers) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        boolean tracked = conn instanceof HttpsURLConnection;
+        if (tracked) {
+            HttpsURLConnection https = (HttpsURLConnection) conn;
+            https.setSSLSocketFactory(trackingFactory(https.getSSLSocketFactory()));
+        }
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        conn.setUseCaches(false);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        openedSocket.set(Boolean.FALSE);
+        try {
+            int code = conn.getResponseCode();
+            drain(code >= 400 ? conn.getErrorStream() : conn.getInputStream());
+            return new Response(code, tracked && !openedSocket.get());
+        } finally {
+            openedSocket.remove();
+        }
+    }
+
+    /**
+     * The pool only hands a connection to a request with the same socket factory, so the wrapper is
+     * shared for as long as the underlying factory stays the same.
+     */
+    private static SSLSocketFactory trackingFactory(SSLSocketFactory delegate) {
+        TrackingSocketFactory factory = trackingFactory;
+        if (factory == null || factory.delegate != delegate) {
+            factory = new TrackingSocketFactory(delegate);
+            trackingFactory = factory;
+        }
+        return factory;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[4096];
+            int total = 0;
+            int read;
+            while (total < MAX_DRAIN_BYTES && (read = in.read(buffer)) != -1) {
+                total += read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Passes every call through to delegate and notes on the calling thread that a socket was opened. */
+    private static final class TrackingSocketFactory extends SSLSocketFactory {
+        final SSLSocketFactory delegate;
+
+        TrackingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        private static Socket opened(Socket socket) {
+            openedSocket.set(Boolean.TRUE);
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return opened(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return opened(delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return opened(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return opened(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return opened(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return opened(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
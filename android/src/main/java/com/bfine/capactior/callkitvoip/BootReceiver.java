@@ -26,6 +26,11 @@ public class BootReceiver extends BroadcastReceiver {
                 Log.e(TAG, "Error initializing after boot", e);
             }
         }
+
+        // The outbox lives in credential-protected storage, which is only readable once the user has unlocked.
+        if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+            RejectOutbox.retryPending(context);
+        }
     }
 }
 
@@ -0,0 +1,89 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.os.SystemClock;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single source of time for the plugin. Durations, deadlines and timeouts use the monotonic
+ * elapsed-realtime clock, which keeps counting in deep sleep and never jumps with NTP or manual clock
+ * changes. Wall-clock time is only for values that are persisted or shown to the app. Tests can swap
+ * in a {@link VirtualSource} to drive timeout and expiry logic without waiting.
+ */
+public final class CallClock {
+    public interface Source {
+        long elapsedRealtimeNanos();
+
+        long currentTimeMillis();
+    }
+
+    public static final Source SYSTEM = new Source() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /** Manually advanced clock; both readings move together so wall-clock and monotonic time stay consistent. */
+    public static class VirtualSource implements Source {
+        /** Starts one second after "boot", as on a device, so elapsed readings are never 0. */
+        private final AtomicLong elapsedNanos = new AtomicLong(1_000_000_000L);
+        private final AtomicLong wallMillis;
+
+        public VirtualSource(long startWallMillis) {
+            this.wallMillis = new AtomicLong(startWallMillis);
+        }
+
+        public void advanceMillis(long millis) {
+            elapsedNanos.addAndGet(millis * 1_000_000L);
+            wallMillis.addAndGet(millis);
+        }
+
+        /** Simulates an NTP or manual wall-clock change; monotonic time is unaffected. */
+        public void setWallMillis(long millis) {
+            wallMillis.set(millis);
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return elapsedNanos.get();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return wallMillis.get();
+        }
+    }
+
+    private static volatile Source source = SYSTEM;
+
+    private CallClock() {
+    }
+
+    @VisibleForTesting
+    public static void setSource(Source newSource) {
+        source = newSource != null ? newSource : SYSTEM;
+    }
+
+    /** Monotonic time for measuring durations; only differences between readings are meaningful. */
+    public static long elapsedNanos() {
+        return source.elapsedRealtimeNanos();
+    }
+
+    /** Monotonic time in milliseconds, for deadlines and timeouts. */
+    public static long elapsedMillis() {
+        return source.elapsedRealtimeNanos() / 1_000_000L;
+    }
+
+    /** Wall-clock time, for persisted or displayed timestamps only; never subtract two of these. */
+    public static long wallMillis() {
+        return source.currentTimeMillis();
+    }
+}
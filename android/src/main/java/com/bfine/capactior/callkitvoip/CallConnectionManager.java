@@ -1,51 +1,54 @@
 package com.bfine.capactior.callkitvoip;
 
-import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 public class CallConnectionManager {
     private static final String TAG = "CallConnectionManager";
-    private static final int MAX_RETRIES = 3;
+    private static final int MAX_ATTEMPTS = 3;
     private static final long RETRY_DELAY_MS = 1000;
-    
+    private static final long MAX_RETRY_DELAY_MS = 8000;
+    private static final long RETRY_DEADLINE_MS = 30_000;
+
+    static final RetryScheduler.Policy DEFAULT_POLICY =
+        new RetryScheduler.Policy(MAX_ATTEMPTS, RETRY_DELAY_MS, MAX_RETRY_DELAY_MS, RETRY_DEADLINE_MS);
+
     public interface RetryCallback {
         void onRetry(int retryCount);
         void onSuccess();
         void onFailure(Exception lastError);
     }
-    
-    public static void executeWithRetry(Runnable operation, RetryCallback callback) {
-        executeWithRetry(operation, callback, 0, null);
+
+    public static RetryScheduler.Operation executeWithRetry(Runnable operation, RetryCallback callback) {
+        return executeWithRetry(null, operation, callback);
     }
-    
-    private static void executeWithRetry(Runnable operation, RetryCallback callback, int retryCount, Exception lastError) {
-        if (retryCount >= MAX_RETRIES) {
-            Log.e(TAG, "Max retries reached, giving up");
-            if (callback != null) {
-                callback.onFailure(lastError);
+
+    /**
+     * Runs operation now and retries failures on the retry thread. Pending retries are cancelled when
+     * the call for connectionId ends; pass null for work that is not tied to a call.
+     */
+    public static RetryScheduler.Operation executeWithRetry(String connectionId, Runnable operation, RetryCallback callback) {
+        return RetryScheduler.run(connectionId, operation, DEFAULT_POLICY, new RetryScheduler.Callback() {
+            @Override
+            public void onRetry(int attempt, long delayMs) {
+                if (callback != null) {
+                    callback.onRetry(attempt);
+                }
             }
-            return;
-        }
-        
-        try {
-            operation.run();
-            if (callback != null) {
-                callback.onSuccess();
+
+            @Override
+            public void onSuccess() {
+                if (callback != null) {
+                    callback.onSuccess();
+                }
             }
-        } catch (Exception e) {
-            Log.w(TAG, "Operation failed, retry attempt " + (retryCount + 1) + "/" + MAX_RETRIES, e);
-            
-            if (callback != null) {
-                callback.onRetry(retryCount + 1);
+
+            @Override
+            public void onFailure(String reason, Exception lastError) {
+                Log.e(TAG, "Operation for " + connectionId + " gave up: " + reason);
+                if (callback != null) {
+                    callback.onFailure(lastError);
+                }
             }
-            
-            long delay = RETRY_DELAY_MS * (long) Math.pow(2, retryCount);
-            new Handler(Looper.getMainLooper()).postDelayed(() -> {
-                executeWithRetry(operation, callback, retryCount + 1, e);
-            }, delay);
-        }
+        });
     }
 }
-
@@ -25,18 +25,13 @@ import androidx.annotation.RequiresApi;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 @CapacitorPlugin(name = "CallKitVoip")
 public class CallKitVoipPlugin extends Plugin {
     public static Bridge staticBridge = null;
-    private static Map<String, CallConfig> connectionIdRegistry = new HashMap<>();
     private static PhoneAccountHandle phoneAccountHandle = null;
     private static String cachedVoipToken = null;
-    private static Map<String, Boolean> listenerRegistrationMap = new ConcurrentHashMap<>();
-    private static boolean queueFlushScheduled = false;
     /** ConnectionId to notify callAnswered when RECORD_AUDIO permission result is received (late-invite: request mic at answer). */
     private static String pendingAnswerConnectionId = null;
     private static final int REQUEST_CODE_MICROPHONE_AT_ANSWER = 1003;
@@ -47,7 +42,12 @@ public class CallKitVoipPlugin extends Plugin {
     private static final String KEY_PATH = "path";
     private static final String KEY_AUTH_TOKEN = "authToken";
     private static final String KEY_HEADERS_JSON = "headersJson";
-    private static final String DEFAULT_PATH = "/api/voip/{channel_id}/drop";
+    static final String DEFAULT_PATH = "/api/voip/{channel_id}/drop";
+    /** Compiled from the stored config on first use and replaced by setRejectCallConfig; guarded by CallKitVoipPlugin.class. */
+    private static volatile RejectRequestTemplate rejectTemplate = null;
+    private static volatile boolean rejectTemplateLoaded = false;
+
+    private final ListenerRegistry listenerRegistry = new ListenerRegistry();
 
     @Override
     public void load() {
@@ -58,8 +58,8 @@ public class CallKitVoipPlugin extends Plugin {
         }
         restoreCallStates(context);
         restoreAndFlushQueuedEvents(context);
+        RejectOutbox.retryPending(context);
         handleAppLaunchIntent();
-        startPeriodicQueueFlushCheck();
     }
     
     private void restoreAndFlushQueuedEvents(Context context) {
@@ -69,18 +69,47 @@ public class CallKitVoipPlugin extends Plugin {
         }
     }
     
-    private void startPeriodicQueueFlushCheck() {
-        android.os.Handler handler = new android.os.Handler(android.os.Looper.getMainLooper());
-        handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (checkHasListeners("callAnswered") || checkHasListeners("callRejected")) {
-                    flushQueuedEvents();
-                } else {
-                    handler.postDelayed(this, 500);
-                }
-            }
-        }, 500);
+    /**
+     * Counts the listener in listenerRegistry and flushes queued callAnswered/callRejected events as soon
+     * as JS attaches a listener for them. The listener overrides must keep @PluginMethod or Capacitor
+     * stops routing these calls here.
+     */
+    @Override
+    @PluginMethod(returnType = PluginMethod.RETURN_NONE)
+    public void addListener(PluginCall call) {
+        super.addListener(call);
+        
+        String eventName = call.getString("eventName");
+        if (eventName == null) {
+            return;
+        }
+        listenerRegistry.add(eventName);
+        
+        if (eventName.equals("callAnswered") || eventName.equals("callRejected")) {
+            Log.d("CallKitVoip", "Listener attached for " + eventName + ", flushing queued events");
+            flushQueuedEvents(CallClock.elapsedMillis());
+        }
+    }
+    
+    @Override
+    @PluginMethod(returnType = PluginMethod.RETURN_NONE)
+    public void removeListener(PluginCall call) {
+        String eventName = call.getString("eventName");
+        String callbackId = call.getString("callbackId");
+        boolean registered = callbackId != null && bridge.getSavedCall(callbackId) != null;
+        
+        super.removeListener(call);
+        
+        if (registered && eventName != null) {
+            listenerRegistry.remove(eventName);
+        }
+    }
+    
+    @Override
+    @PluginMethod(returnType = PluginMethod.RETURN_PROMISE)
+    public void removeAllListeners(PluginCall call) {
+        listenerRegistry.clear();
+        super.removeAllListeners(call);
     }
     
     private void handleAppLaunchIntent() {
@@ -96,6 +125,7 @@ public class CallKitVoipPlugin extends Plugin {
             
             if (callAnswered && isIncomingCall && connectionId != null && !connectionId.isEmpty()) {
                 Log.d("CallKitVoip", "App launched from answer button, connectionId: " + connectionId);
+                CallQualityMonitor.trackStage(connectionId, CallQualityMonitor.Stage.ANSWER_TAPPED);
                 
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
                     getActivity().setShowWhenLocked(true);
@@ -146,7 +176,7 @@ public class CallKitVoipPlugin extends Plugin {
         try {
             Map<String, CallConfig> savedStates = CallStateManager.restoreCallStates(context);
             for (Map.Entry<String, CallConfig> entry : savedStates.entrySet()) {
-                connectionIdRegistry.put(entry.getKey(), entry.getValue());
+                CallRegistry.registerIfAbsent(entry.getKey(), entry.getValue());
                 Log.d("CallKitVoip", "Restored call state for connectionId: " + entry.getKey());
             }
         } catch (Exception e) {
@@ -364,13 +394,18 @@ public class CallKitVoipPlugin extends Plugin {
             headersJson = headersObj.toString();
         }
 
-        android.content.SharedPreferences prefs = getContext().getSharedPreferences(PREF_REJECT_CONFIG, Context.MODE_PRIVATE);
-        prefs.edit()
-                .putString(KEY_BASE_URL, baseUrl.trim())
-                .putString(KEY_PATH, path.startsWith("/") ? path : "/" + path)
-                .putString(KEY_AUTH_TOKEN, authToken != null ? authToken : "")
-                .putString(KEY_HEADERS_JSON, headersJson != null ? headersJson : "{}")
-                .apply();
+        final android.content.SharedPreferences prefs = getContext().getSharedPreferences(PREF_REJECT_CONFIG, Context.MODE_PRIVATE);
+        final String baseUrlFinal = baseUrl.trim();
+        final String pathFinal = path.startsWith("/") ? path : "/" + path;
+        final String authTokenFinal = authToken != null ? authToken : "";
+        final String headersJsonFinal = headersJson != null ? headersJson : "{}";
+        setRejectTemplate(RejectRequestTemplate.compile(baseUrlFinal, pathFinal, authTokenFinal, headersJsonFinal));
+        PersistenceExecutor.execute(() -> prefs.edit()
+                .putString(KEY_BASE_URL, baseUrlFinal)
+                .putString(KEY_PATH, pathFinal)
+                .putString(KEY_AUTH_TOKEN, authTokenFinal)
+                .putString(KEY_HEADERS_JSON, headersJsonFinal)
+                .commit());
         call.resolve();
     }
 
@@ -439,6 +474,7 @@ public class CallKitVoipPlugin extends Plugin {
             
             if (callAnswered && isIncomingCall && connectionId != null && !connectionId.isEmpty()) {
                 Log.d("CallKitVoip", "App received new intent from answer button, connectionId: " + connectionId + " (request mic at answer)");
+                CallQualityMonitor.trackStage(connectionId, CallQualityMonitor.Stage.ANSWER_TAPPED);
                 
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
                     getActivity().setShowWhenLocked(true);
@@ -521,89 +557,49 @@ public class CallKitVoipPlugin extends Plugin {
     }
 
     public void notifyEvent(String eventName, String connectionId) {
-        CallConfig config = connectionIdRegistry.get(connectionId);
-        if (config == null) {
+        CallRegistry.Entry call = CallRegistry.get(connectionId);
+        if (call == null) {
             Log.e("CallKitVoip", "No call config found for connectionId: " + connectionId);
             return;
         }
 
-        Log.d("notifyEvent", eventName + "  " + config.getDisplayName() + "   " + connectionId);
+        Log.d("notifyEvent", eventName + "  " + call.config.getDisplayName() + "   " + connectionId);
 
         if (eventName.equals("callAnswered") || eventName.equals("callRejected")) {
             boolean hasListeners = checkHasListeners(eventName);
             
             if (!hasListeners) {
                 Log.d("CallKitVoip", "No listeners registered for " + eventName + ", queuing event for connectionId: " + connectionId);
+                FlightRecorder.record(FlightRecorder.Event.EVENT_QUEUED, connectionId);
                 EventQueueManager.queueEvent(getContext(), eventName, connectionId);
+                // A listener that attached after the check above may have flushed before this event was
+                // queued; flush again rather than leave the event for the next listener.
+                if (checkHasListeners(eventName)) {
+                    flushQueuedEvents(0);
+                }
                 return;
-            } else {
-                scheduleQueueFlush();
             }
         }
 
-        JSObject data = new JSObject();
-        data.put("callId", config.callId);
-        data.put("media", config.media);
-        data.put("duration", config.duration);
-        data.put("bookingId", config.bookingId);
-        data.put("type", config.type);
-        data.put("call_type", config.call_type);
-        data.put("channel_id", config.channel_id);
-        data.put("uuid", connectionId);
-        notifyListeners(eventName, data);
-    }
-    
-    private boolean checkHasListeners(String eventName) {
-        try {
-            java.lang.reflect.Method method = Plugin.class.getDeclaredMethod("hasListeners", String.class);
-            method.setAccessible(true);
-            boolean hasListeners = (Boolean) method.invoke(this, eventName);
-            if (hasListeners && (eventName.equals("callAnswered") || eventName.equals("callRejected"))) {
-                listenerRegistrationMap.put(eventName, true);
-            }
-            return hasListeners;
-        } catch (Exception e) {
-            Boolean registered = listenerRegistrationMap.get(eventName);
-            if (registered != null && registered) {
-                return true;
-            }
-            
-            try {
-                java.lang.reflect.Field listenersField = Plugin.class.getDeclaredField("listeners");
-                listenersField.setAccessible(true);
-                Object listenersObj = listenersField.get(this);
-                if (listenersObj instanceof Map) {
-                    Map<?, ?> listeners = (Map<?, ?>) listenersObj;
-                    Object listenerList = listeners.get(eventName);
-                    if (listenerList instanceof java.util.List) {
-                        java.util.List<?> list = (java.util.List<?>) listenerList;
-                        boolean hasListeners = !list.isEmpty();
-                        if (hasListeners && (eventName.equals("callAnswered") || eventName.equals("callRejected"))) {
-                            listenerRegistrationMap.put(eventName, true);
-                            scheduleQueueFlush();
-                        }
-                        return hasListeners;
-                    }
-                }
-            } catch (Exception ex) {
-            }
-            
-            return false;
+        notifyListeners(eventName, call.getPayload());
+        FlightRecorder.record(FlightRecorder.Event.EVENT_DELIVERED, connectionId);
+        if (eventName.equals("callAnswered")) {
+            CallQualityMonitor.trackStage(connectionId, CallQualityMonitor.Stage.ANSWER_DELIVERED);
         }
     }
     
-    private void scheduleQueueFlush() {
-        if (!queueFlushScheduled) {
-            queueFlushScheduled = true;
-            android.os.Handler handler = new android.os.Handler(android.os.Looper.getMainLooper());
-            handler.postDelayed(() -> {
-                flushQueuedEvents();
-                queueFlushScheduled = false;
-            }, 100);
-        }
+    private boolean checkHasListeners(String eventName) {
+        return listenerRegistry.hasListeners(eventName);
     }
     
-    private void flushQueuedEvents() {
+    /**
+     * Delivers queued events that now have a listener. Synchronized so the flush from addListener and
+     * one from notifyEvent cannot both deliver the same event.
+     *
+     * @param listenerAttachedAt {@link CallClock#elapsedMillis()} when the listener that triggered this flush was attached,
+     *                           or 0 if the flush was not triggered by a listener attaching
+     */
+    private synchronized void flushQueuedEvents(long listenerAttachedAt) {
         Context context = getContext();
         if (context == null) {
             Log.w("CallKitVoip", "Context is null, cannot flush queued events");
@@ -621,27 +617,24 @@ public class CallKitVoipPlugin extends Plugin {
         java.util.List<EventQueueManager.QueuedEvent> eventsToRemove = new java.util.ArrayList<>();
         
         for (EventQueueManager.QueuedEvent event : queuedEvents) {
-            CallConfig config = connectionIdRegistry.get(event.connectionId);
-            if (config == null) {
+            CallRegistry.Entry call = CallRegistry.get(event.connectionId);
+            if (call == null) {
                 Log.w("CallKitVoip", "Call config not found for queued event connectionId: " + event.connectionId + ", removing from queue");
-                EventQueueManager.removeEvent(context, event.eventName, event.connectionId);
+                eventsToRemove.add(event);
                 continue;
             }
             
             boolean hasListeners = checkHasListeners(event.eventName);
             if (hasListeners) {
-                JSObject data = new JSObject();
-                data.put("callId", config.callId);
-                data.put("media", config.media);
-                data.put("duration", config.duration);
-                data.put("bookingId", config.bookingId);
-                data.put("type", config.type);
-                data.put("call_type", config.call_type);
-                data.put("channel_id", config.channel_id);
-                data.put("uuid", event.connectionId);
-                
-                notifyListeners(event.eventName, data);
+                notifyListeners(event.eventName, call.getPayload());
+                FlightRecorder.record(FlightRecorder.Event.QUEUED_EVENT_FLUSHED, event.connectionId);
+                if (event.eventName.equals("callAnswered")) {
+                    CallQualityMonitor.trackStage(event.connectionId, CallQualityMonitor.Stage.ANSWER_DELIVERED);
+                }
                 Log.d("CallKitVoip", "Flushed queued event: " + event.eventName + " for connectionId: " + event.connectionId);
+                if (listenerAttachedAt > 0) {
+                    CallQualityMonitor.trackQueueFlush(event.connectionId, CallClock.elapsedMillis() - listenerAttachedAt);
+                }
                 
                 eventsToRemove.add(event);
             } else {
@@ -649,9 +642,7 @@ public class CallKitVoipPlugin extends Plugin {
             }
         }
         
-        for (EventQueueManager.QueuedEvent event : eventsToRemove) {
-            EventQueueManager.removeEvent(context, event.eventName, event.connectionId);
-        }
+        EventQueueManager.acknowledgeEvents(context, eventsToRemove);
         
         Log.d("CallKitVoip", "Finished flushing queued events, removed " + eventsToRemove.size() + " events");
     }
@@ -675,15 +666,46 @@ public class CallKitVoipPlugin extends Plugin {
     }
 
     public static void storeCallConfig(String connectionId, CallConfig config) {
-        connectionIdRegistry.put(connectionId, config);
+        CallRegistry.register(connectionId, config);
     }
 
     public static CallConfig getCallConfig(String connectionId) {
-        return connectionIdRegistry.get(connectionId);
+        return CallRegistry.getConfig(connectionId);
     }
 
     public static void removeCallConfig(String connectionId) {
-        connectionIdRegistry.remove(connectionId);
+        CallRegistry.remove(connectionId);
+        RetryScheduler.cancel(connectionId);
+        RejectEndpointPrewarmer.cancel(connectionId);
+    }
+
+    /**
+     * Reject request template for the current config, or null if none is set. The stored config is
+     * read and compiled once per process; after that this is a volatile read.
+     */
+    static RejectRequestTemplate getRejectTemplate(Context context) {
+        if (!rejectTemplateLoaded) {
+            synchronized (CallKitVoipPlugin.class) {
+                if (!rejectTemplateLoaded) {
+                    android.content.SharedPreferences prefs = context.getSharedPreferences(PREF_REJECT_CONFIG, Context.MODE_PRIVATE);
+                    rejectTemplate = RejectRequestTemplate.compile(
+                        prefs.getString(KEY_BASE_URL, null),
+                        prefs.getString(KEY_PATH, DEFAULT_PATH),
+                        prefs.getString(KEY_AUTH_TOKEN, ""),
+                        prefs.getString(KEY_HEADERS_JSON, "{}"));
+                    rejectTemplateLoaded = true;
+                }
+            }
+        }
+        return rejectTemplate;
+    }
+
+    /** Replaces the reject config in use; the stored copy is left to the caller. */
+    static void setRejectTemplate(RejectRequestTemplate template) {
+        synchronized (CallKitVoipPlugin.class) {
+            rejectTemplate = template;
+            rejectTemplateLoaded = true;
+        }
     }
 
     /**
@@ -693,69 +715,28 @@ public class CallKitVoipPlugin extends Plugin {
      * Safe to call from BroadcastReceiver / ConnectionService (no plugin instance required).
      */
     public static void notifyRejectToBackend(Context context, CallConfig config) {
-        if (config == null) return;
+        notifyRejectToBackend(context, null, config);
+    }
 
-        android.content.SharedPreferences prefs = context.getSharedPreferences(PREF_REJECT_CONFIG, Context.MODE_PRIVATE);
-        String baseUrl = prefs.getString(KEY_BASE_URL, null);
-        String pathTemplate = prefs.getString(KEY_PATH, DEFAULT_PATH);
-        String authToken = prefs.getString(KEY_AUTH_TOKEN, "");
-        String headersJson = prefs.getString(KEY_HEADERS_JSON, "{}");
-        if (headersJson == null || headersJson.isEmpty()) headersJson = "{}";
+    /**
+     * As above, sending at most one reject per call: repeats for the same connectionId or channel_id
+     * from other reject paths are dropped and counted.
+     */
+    public static void notifyRejectToBackend(Context context, String connectionId, CallConfig config) {
+        if (config == null) return;
 
-        if (baseUrl == null || baseUrl.trim().isEmpty()) {
+        RejectRequestTemplate template = getRejectTemplate(context);
+        if (template == null) {
             Log.d("CallKitVoip", "Reject API not configured (baseUrl missing), skipping backend notify");
             return;
         }
-
-        String channelIdRaw = config.channel_id != null ? config.channel_id : "";
-        String channelIdEncoded;
-        try {
-            channelIdEncoded = java.net.URLEncoder.encode(channelIdRaw, java.nio.charset.StandardCharsets.UTF_8.name()).replace("+", "%20");
-        } catch (java.io.UnsupportedEncodingException e) {
-            channelIdEncoded = channelIdRaw;
-        }
-        String path = pathTemplate.replace("{channel_id}", channelIdEncoded);
-        String base = baseUrl.trim().replaceAll("/$", "");
-        String pathNorm = path.startsWith("/") ? path : "/" + path;
-        final String urlStr = base + pathNorm;
-        final String authTokenFinal = authToken != null ? authToken : "";
-        final String headersJsonFinal = headersJson;
-
-        new Thread(() -> {
-            try {
-                java.net.URL url = new java.net.URL(urlStr);
-                java.net.HttpURLConnection conn = (java.net.HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("DELETE");
-                conn.setConnectTimeout(10000);
-                conn.setReadTimeout(10000);
-
-                if (!authTokenFinal.isEmpty()) {
-                    conn.setRequestProperty("Authorization", "Bearer " + authTokenFinal);
-                }
-                try {
-                    org.json.JSONObject headers = new org.json.JSONObject(headersJsonFinal);
-                    java.util.Iterator<String> it = headers.keys();
-                    while (it.hasNext()) {
-                        String k = it.next();
-                        conn.setRequestProperty(k, headers.optString(k, ""));
-                    }
-                } catch (Exception ignored) {}
-
-                int code = conn.getResponseCode();
-                if (code >= 200 && code < 300) {
-                    Log.d("CallKitVoip", "Reject reported to backend");
-                } else {
-                    Log.w("CallKitVoip", "Reject API returned " + code);
-                }
-                conn.disconnect();
-            } catch (Exception e) {
-                Log.e("CallKitVoip", "Reject API request failed", e);
-            }
-        }).start();
-    }
-
-    public static Map<String, CallConfig> getAllCallConfigs() {
-        return new HashMap<>(connectionIdRegistry);
+        RejectCallNotifier.Request request = template.newRequest(config.channel_id);
+        if (!RejectDeduplicator.tryClaim(connectionId, config.channel_id, request.idempotencyKey)) {
+            Log.d("CallKitVoip", "Reject already sent for connectionId: " + connectionId + ", skipping duplicate");
+            FlightRecorder.record(FlightRecorder.Event.REJECT_DEDUPLICATED, connectionId);
+            return;
+        }
+        RejectOutbox.enqueue(context, config.channel_id, request);
     }
 
     @PluginMethod
@@ -765,6 +746,10 @@ public class CallKitVoipPlugin extends Plugin {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                 MyConnectionService.setActiveAndCancelTimeout(connectionId);
             }
+            FlightRecorder.record(FlightRecorder.Event.JS_ANSWER, connectionId);
+            CallRegistry.transition(connectionId, CallRegistry.CallState.ANSWERED);
+            RejectEndpointPrewarmer.cancel(connectionId);
+            CallQualityMonitor.trackStage(connectionId, CallQualityMonitor.Stage.ANSWER_TAPPED);
             CallQualityMonitor.trackCallEnd(connectionId, "User answered");
             notifyEvent("callAnswered", connectionId);
         }
@@ -775,6 +760,7 @@ public class CallKitVoipPlugin extends Plugin {
     public void rejectCall(PluginCall call) {
         String connectionId = call.getString("uuid");
         if (connectionId != null) {
+            FlightRecorder.record(FlightRecorder.Event.JS_REJECT, connectionId);
             CallQualityMonitor.trackCallEnd(connectionId, "User rejected");
             notifyEvent("callRejected", connectionId);
             removeCallConfig(connectionId);
@@ -788,6 +774,7 @@ public class CallKitVoipPlugin extends Plugin {
     public void hangupCall(PluginCall call) {
         String connectionId = call.getString("uuid");
         if (connectionId != null) {
+            FlightRecorder.record(FlightRecorder.Event.JS_HANGUP, connectionId);
             CallQualityMonitor.trackCallEnd(connectionId, "User hangup");
             notifyEvent("callEnded", connectionId);
             removeCallConfig(connectionId);
@@ -805,6 +792,9 @@ public class CallKitVoipPlugin extends Plugin {
         String connectionId = call.getString("uuid");
         if (connectionId != null) {
             Log.d("CallKitVoip", "Call connected for uuid: " + connectionId);
+            FlightRecorder.record(FlightRecorder.Event.JS_CONNECTED, connectionId);
+            CallRegistry.transition(connectionId, CallRegistry.CallState.ACTIVE);
+            CallQualityMonitor.trackStage(connectionId, CallQualityMonitor.Stage.CONNECTED);
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                 MyConnectionService.setActiveAndCancelTimeout(connectionId);
             }
@@ -816,6 +806,7 @@ public class CallKitVoipPlugin extends Plugin {
     public void endCall(PluginCall call) {
         String connectionId = call.getString("uuid");
         if (connectionId != null) {
+            FlightRecorder.record(FlightRecorder.Event.JS_END, connectionId);
             CallQualityMonitor.trackCallEnd(connectionId, "User end call");
             notifyEvent("callEnded", connectionId);
             removeCallConfig(connectionId);
@@ -844,6 +835,126 @@ public class CallKitVoipPlugin extends Plugin {
         call.resolve(ret);
     }
 
+    @PluginMethod
+    public void dumpFlightRecorder(PluginCall call) {
+        JSObject calls = new JSObject();
+        for (CallRegistry.Entry entry : CallRegistry.getAll()) {
+            calls.put(Integer.toHexString(FlightRecorder.hash(entry.connectionId)), entry.connectionId);
+        }
+        JSObject ret = new JSObject();
+        ret.put("capacity", FlightRecorder.getCapacity());
+        ret.put("recordedCount", FlightRecorder.getRecordedCount());
+        ret.put("records", FlightRecorder.dump());
+        ret.put("calls", calls);
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void setMetricsExport(PluginCall call) {
+        Long flushIntervalMs = call.getLong("flushIntervalMs", MetricsExporter.DEFAULT_FLUSH_INTERVAL_MS);
+        Integer maxBatchSize = call.getInt("maxBatchSize", MetricsExporter.DEFAULT_MAX_BATCH_SIZE);
+        Long maxFileBytes = call.getLong("maxFileBytes", FileMetricsSink.DEFAULT_MAX_BYTES);
+        if (maxFileBytes <= 0) {
+            call.reject("maxFileBytes must be at least 1");
+            return;
+        }
+        try {
+            MetricsExporter.configure(flushIntervalMs, maxBatchSize);
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+
+        java.util.List<MetricsSink> exportSinks = new java.util.ArrayList<>();
+        if (call.getBoolean("jsBridge", false)) {
+            exportSinks.add(new JsBridgeMetricsSink());
+        }
+        JSObject ret = new JSObject();
+        if (call.getBoolean("file", false)) {
+            FileMetricsSink fileSink = new FileMetricsSink(getContext().getFilesDir(), maxFileBytes);
+            exportSinks.add(fileSink);
+            ret.put("filePath", fileSink.getFile().getAbsolutePath());
+        }
+        MetricsExporter.replaceSinks(exportSinks, JsBridgeMetricsSink.class, FileMetricsSink.class);
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void getLatencyHistograms(PluginCall call) {
+        JSObject ret = new JSObject();
+        for (Map.Entry<String, Map<String, Object>> histogram : CallQualityMonitor.getLatencyHistograms().entrySet()) {
+            JSObject stats = new JSObject();
+            for (Map.Entry<String, Object> entry : histogram.getValue().entrySet()) {
+                stats.put(entry.getKey(), entry.getValue());
+            }
+            ret.put(histogram.getKey(), stats);
+        }
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void setEventQueueConfig(PluginCall call) {
+        Integer capacity = call.getInt("capacity", EventQueueManager.getCapacity());
+        String policyValue = call.getString("overflowPolicy");
+        EventQueueManager.OverflowPolicy policy = policyValue != null
+            ? EventQueueManager.OverflowPolicy.fromValue(policyValue)
+            : EventQueueManager.getOverflowPolicy();
+        
+        if (capacity == null || capacity < 1) {
+            call.reject("capacity must be at least 1");
+            return;
+        }
+        if (policy == null) {
+            call.reject("Unknown overflowPolicy: " + policyValue);
+            return;
+        }
+        
+        EventQueueManager.configure(capacity, policy);
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void getEventQueueStats(PluginCall call) {
+        Map<String, Object> stats = EventQueueManager.getStats(getContext());
+        JSObject ret = new JSObject();
+        for (Map.Entry<String, Object> entry : stats.entrySet()) {
+            ret.put(entry.getKey(), entry.getValue());
+        }
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void getPersistenceStats(PluginCall call) {
+        Map<String, Object> stats = PersistenceExecutor.getStats();
+        JSObject ret = new JSObject();
+        for (Map.Entry<String, Object> entry : stats.entrySet()) {
+            ret.put(entry.getKey(), entry.getValue());
+        }
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void getRejectBackendStats(PluginCall call) {
+        JSObject backends = new JSObject();
+        for (Map.Entry<String, Map<String, Object>> backend : RejectCallNotifier.getBackendStats().entrySet()) {
+            JSObject snapshot = new JSObject();
+            for (Map.Entry<String, Object> entry : backend.getValue().entrySet()) {
+                snapshot.put(entry.getKey(), entry.getValue());
+            }
+            backends.put(backend.getKey(), snapshot);
+        }
+        JSObject ret = new JSObject();
+        for (Map.Entry<String, Object> entry : RejectCallNotifier.getParkedStats().entrySet()) {
+            ret.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Object> entry : RejectOutbox.getStats().entrySet()) {
+            ret.put(entry.getKey(), entry.getValue());
+        }
+        ret.put("duplicateRejects", RejectDeduplicator.getDuplicateCount());
+        ret.put("backends", backends);
+        call.resolve(ret);
+    }
+
     @PluginMethod
     public void requestPhoneNumbersPermission(PluginCall call) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
@@ -987,6 +1098,11 @@ public class CallKitVoipPlugin extends Plugin {
         Log.e("CallKitVoip", "Error: " + errorCode + " - " + errorMessage);
     }
 
+    /** Lets {@link JsBridgeMetricsSink} emit from the metrics export thread. */
+    void notifyMetrics(String eventName, JSObject data) {
+        notifyListeners(eventName, data);
+    }
+
     public static CallKitVoipPlugin getInstance() {
         if (staticBridge == null || staticBridge.getWebView() == null)
             return null;
@@ -2,47 +2,158 @@ package com.bfine.capactior.callkitvoip;
 
 import android.util.Log;
 
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class CallQualityMonitor {
     private static final String TAG = "CallQualityMonitor";
-    private static final Map<String, CallMetrics> metricsMap = new HashMap<>();
+    private static final Map<String, CallMetrics> metricsMap = new ConcurrentHashMap<>();
     
+    /**
+     * Milestones of an incoming call. Reaching a stage records the time since its reference stage
+     * (the first of the listed references this call reached) into that stage's histogram.
+     */
+    public enum Stage {
+        PUSH_RECEIVED(null),
+        INCOMING_CALL_ADDED("pushToIncomingCallAdded", PUSH_RECEIVED),
+        RINGING("pushToRinging", PUSH_RECEIVED),
+        NOTIFICATION_SHOWN("pushToNotificationShown", PUSH_RECEIVED),
+        ANSWER_TAPPED("ringToAnswer", RINGING, NOTIFICATION_SHOWN),
+        ANSWER_DELIVERED("answerToDelivered", ANSWER_TAPPED),
+        CONNECTED("answerToConnected", ANSWER_TAPPED);
+        
+        public final String histogramName;
+        private final Stage[] references;
+        
+        Stage(String histogramName, Stage... references) {
+            this.histogramName = histogramName;
+            this.references = references;
+        }
+    }
+    
+    /** Aggregated across calls and kept for the life of the process; clearMetrics does not touch them. */
+    private static final Map<Stage, LatencyHistogram> stageHistograms = new EnumMap<>(Stage.class);
+    static {
+        for (Stage stage : Stage.values()) {
+            if (stage.histogramName != null) {
+                stageHistograms.put(stage, new LatencyHistogram());
+            }
+        }
+    }
+    
+    /** Reject DELETE latency, split by whether it went over a pooled connection (e.g. one left by a push-time warm-up). */
+    private static final LatencyHistogram rejectSendWarm = new LatencyHistogram();
+    private static final LatencyHistogram rejectSendCold = new LatencyHistogram();
+    
+    /**
+     * Per-call record. Every field is atomic or set once at construction, so the FCM, main and plugin
+     * threads can update the same call without locking.
+     */
     public static class CallMetrics {
-        public long startTime;
-        public long endTime;
-        public String endReason;
-        public String error;
-        public int retryCount;
+        /** Wall-clock start and end, for reporting only; durations use the elapsed fields. */
+        public final long startTime;
+        public final AtomicLong endTime = new AtomicLong();
+        private final long startElapsed;
+        private final AtomicLong endElapsed = new AtomicLong();
+        public volatile String endReason;
+        public volatile String error;
+        public final AtomicInteger retryCount = new AtomicInteger();
+        /** Time from the JS listener attaching to this call's queued event being flushed, or -1 if never queued. */
+        public final AtomicLong queueFlushLatencyMs = new AtomicLong(-1);
+        /** {@link CallClock#elapsedMillis()} at which each {@link Stage} was first reached, 0 if not yet reached. */
+        public final AtomicLongArray stageTimes = new AtomicLongArray(Stage.values().length);
+        
+        CallMetrics(long startTime, long startElapsed) {
+            this.startTime = startTime;
+            this.startElapsed = startElapsed;
+        }
         
         public long getDuration() {
-            if (endTime > 0) {
-                return endTime - startTime;
+            long end = endElapsed.get();
+            if (end > 0) {
+                return end - startElapsed;
             }
-            return System.currentTimeMillis() - startTime;
+            return CallClock.elapsedMillis() - startElapsed;
         }
     }
     
     public static void trackCallStart(String connectionId) {
-        CallMetrics metrics = new CallMetrics();
-        metrics.startTime = System.currentTimeMillis();
-        metrics.retryCount = 0;
+        if (connectionId == null) {
+            return;
+        }
+        long now = CallClock.elapsedMillis();
+        CallMetrics metrics = new CallMetrics(CallClock.wallMillis(), now);
+        metrics.stageTimes.set(Stage.PUSH_RECEIVED.ordinal(), now);
         metricsMap.put(connectionId, metrics);
         Log.d(TAG, "Tracking call start for: " + connectionId);
     }
     
+    /**
+     * Records that a call reached stage. Only the first time counts, so a stage reported from several
+     * code paths (e.g. answer from Telecom and from JS) is measured once.
+     */
+    public static void trackStage(String connectionId, Stage stage) {
+        CallMetrics metrics = getMetrics(connectionId);
+        long now = CallClock.elapsedMillis();
+        if (metrics == null || !metrics.stageTimes.compareAndSet(stage.ordinal(), 0, now)) {
+            return;
+        }
+        
+        long latency = getStageLatency(metrics, stage);
+        if (latency >= 0) {
+            stageHistograms.get(stage).record(latency);
+            Log.d(TAG, stage.histogramName + " for " + connectionId + ": " + latency + "ms");
+        }
+    }
+    
+    /** Time from the stage's first reached reference stage to the stage itself, or -1 if either is missing. */
+    private static long getStageLatency(CallMetrics metrics, Stage stage) {
+        long stageTime = metrics.stageTimes.get(stage.ordinal());
+        if (stageTime == 0) {
+            return -1;
+        }
+        for (Stage reference : stage.references) {
+            long referenceTime = metrics.stageTimes.get(reference.ordinal());
+            if (referenceTime != 0) {
+                return stageTime - referenceTime;
+            }
+        }
+        return -1;
+    }
+    
+    /** p50/p90/p99/max per stage histogram, keyed by histogram name. */
+    public static Map<String, Map<String, Object>> getLatencyHistograms() {
+        Map<String, Map<String, Object>> result = new HashMap<>();
+        for (Map.Entry<Stage, LatencyHistogram> entry : stageHistograms.entrySet()) {
+            result.put(entry.getKey().histogramName, entry.getValue().getSnapshot());
+        }
+        result.put("rejectSendWarm", rejectSendWarm.getSnapshot());
+        result.put("rejectSendCold", rejectSendCold.getSnapshot());
+        return result;
+    }
+    
+    public static void trackRejectSend(boolean warm, long latencyMs) {
+        (warm ? rejectSendWarm : rejectSendCold).record(latencyMs);
+        Log.d(TAG, "Reject sent in " + latencyMs + "ms over a " + (warm ? "warm" : "cold") + " connection");
+    }
+    
     public static void trackCallEnd(String connectionId, String reason) {
-        CallMetrics metrics = metricsMap.get(connectionId);
+        CallMetrics metrics = getMetrics(connectionId);
         if (metrics != null) {
-            metrics.endTime = System.currentTimeMillis();
+            metrics.endElapsed.set(CallClock.elapsedMillis());
+            metrics.endTime.set(CallClock.wallMillis());
             metrics.endReason = reason;
             Log.d(TAG, "Call ended: " + connectionId + ", reason: " + reason + ", duration: " + metrics.getDuration() + "ms");
         }
     }
     
     public static void trackCallFailure(String connectionId, String error) {
-        CallMetrics metrics = metricsMap.get(connectionId);
+        CallMetrics metrics = getMetrics(connectionId);
         if (metrics != null) {
             metrics.error = error;
             Log.e(TAG, "Call failure: " + connectionId + ", error: " + error);
@@ -52,32 +163,69 @@ public class CallQualityMonitor {
     }
     
     public static void trackRetry(String connectionId) {
-        CallMetrics metrics = metricsMap.get(connectionId);
+        CallMetrics metrics = getMetrics(connectionId);
+        if (metrics != null) {
+            int retries = metrics.retryCount.incrementAndGet();
+            Log.d(TAG, "Call retry: " + connectionId + ", retry count: " + retries);
+        }
+    }
+    
+    public static void trackQueueFlush(String connectionId, long latencyMs) {
+        Log.d(TAG, "Queued event flushed for: " + connectionId + ", " + latencyMs + "ms after listener attached");
+        CallMetrics metrics = getMetrics(connectionId);
         if (metrics != null) {
-            metrics.retryCount++;
-            Log.d(TAG, "Call retry: " + connectionId + ", retry count: " + metrics.retryCount);
+            metrics.queueFlushLatencyMs.set(latencyMs);
         }
     }
     
     public static Map<String, Object> getCallMetrics(String connectionId) {
+        return toMap(getMetrics(connectionId));
+    }
+    
+    private static Map<String, Object> toMap(CallMetrics metrics) {
         Map<String, Object> result = new HashMap<>();
-        CallMetrics metrics = metricsMap.get(connectionId);
         
         if (metrics != null) {
+            long queueFlushLatencyMs = metrics.queueFlushLatencyMs.get();
             result.put("startTime", metrics.startTime);
-            result.put("endTime", metrics.endTime);
+            result.put("endTime", metrics.endTime.get());
             result.put("duration", metrics.getDuration());
             result.put("endReason", metrics.endReason);
             result.put("error", metrics.error);
-            result.put("retryCount", metrics.retryCount);
+            result.put("retryCount", metrics.retryCount.get());
+            if (queueFlushLatencyMs >= 0) {
+                result.put("queueFlushLatencyMs", queueFlushLatencyMs);
+            }
         }
         
         return result;
     }
     
     public static void clearMetrics(String connectionId) {
-        metricsMap.remove(connectionId);
+        CallMetrics metrics = connectionId != null ? metricsMap.remove(connectionId) : null;
+        if (metrics != null && MetricsExporter.isEnabled()) {
+            MetricsExporter.enqueue(buildCallRecord(connectionId, metrics));
+        }
         Log.d(TAG, "Cleared metrics for: " + connectionId);
     }
+    
+    /** Completed-call record for {@link MetricsExporter}: the getCallMetrics fields plus per-stage latencies. */
+    private static Map<String, Object> buildCallRecord(String connectionId, CallMetrics metrics) {
+        Map<String, Object> callRecord = toMap(metrics);
+        callRecord.put("connectionId", connectionId);
+        for (Stage stage : Stage.values()) {
+            if (stage.histogramName != null) {
+                long latency = getStageLatency(metrics, stage);
+                if (latency >= 0) {
+                    callRecord.put(stage.histogramName + "Ms", latency);
+                }
+            }
+        }
+        return callRecord;
+    }
+    
+    /** ConcurrentHashMap rejects null keys, and several Telecom paths may not have a connectionId. */
+    private static CallMetrics getMetrics(String connectionId) {
+        return connectionId != null ? metricsMap.get(connectionId) : null;
+    }
 }
-
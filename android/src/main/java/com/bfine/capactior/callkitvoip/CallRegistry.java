@@ -0,0 +1,183 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.util.Log;
+
+import com.getcapacitor.JSObject;
+
+import org.json.JSONException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide registry of known calls, shared by the FCM service, Telecom callbacks and plugin
+ * methods. Each entry carries the call's lifecycle state and the time it entered each state; state
+ * changes are checked against the allowed transitions so a late or duplicate callback cannot move a
+ * call backwards.
+ */
+public class CallRegistry {
+    private static final String TAG = "CallRegistry";
+
+    public enum CallState {
+        RECEIVED, RINGING, ANSWERED, ACTIVE, ENDED;
+
+        boolean canTransitionTo(CallState next) {
+            switch (this) {
+                case RECEIVED:
+                    return next == RINGING || next == ANSWERED || next == ENDED;
+                case RINGING:
+                    return next == ANSWERED || next == ENDED;
+                case ANSWERED:
+                    return next == ACTIVE || next == ENDED;
+                case ACTIVE:
+                    return next == ENDED;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /** Fields every event payload carries, copied from the cached payload for each event. */
+    private static final String[] PAYLOAD_KEYS = {
+        "callId", "media", "duration", "bookingId", "type", "call_type", "channel_id", "uuid"
+    };
+
+    public static class Entry {
+        public final String connectionId;
+        public final CallConfig config;
+        /** Built once at registration and never handed out or changed, so copies can be read concurrently. */
+        private final JSObject payload;
+        private final long[] stateTimestamps = new long[CallState.values().length];
+        private CallState state;
+
+        Entry(String connectionId, CallConfig config, long timestamp) {
+            this.connectionId = connectionId;
+            this.config = config;
+            this.payload = buildPayload(connectionId, config);
+            this.state = CallState.RECEIVED;
+            this.stateTimestamps[CallState.RECEIVED.ordinal()] = timestamp;
+        }
+
+        /**
+         * Bridge payload for one event on this call: a copy of the payload cached at registration, so
+         * the listener can modify it without affecting other events.
+         */
+        public JSObject getPayload() {
+            try {
+                return new JSObject(payload, PAYLOAD_KEYS);
+            } catch (JSONException e) {
+                Log.e(TAG, "Error copying payload for connectionId: " + connectionId, e);
+                return buildPayload(connectionId, config);
+            }
+        }
+
+        /** The payload for one event with an event-specific field added or replaced. */
+        public JSObject payloadWith(String key, Object value) {
+            JSObject data = getPayload();
+            data.put(key, value);
+            return data;
+        }
+
+        public synchronized CallState getState() {
+            return state;
+        }
+
+        /** {@link CallClock#elapsedMillis()} when the call entered state, or 0 if it never did. */
+        public synchronized long getStateTimestamp(CallState state) {
+            return stateTimestamps[state.ordinal()];
+        }
+
+        /**
+         * Moves to next, or does nothing if the call is already in it: Telecom and the JS side can both
+         * report the same step, and the first report keeps its timestamp.
+         */
+        synchronized boolean transitionTo(CallState next, long timestamp) {
+            if (state == next) {
+                return true;
+            }
+            if (!state.canTransitionTo(next)) {
+                return false;
+            }
+            state = next;
+            stateTimestamps[next.ordinal()] = timestamp;
+            return true;
+        }
+    }
+
+    private static JSObject buildPayload(String connectionId, CallConfig config) {
+        JSObject data = new JSObject();
+        data.put("callId", config.callId);
+        data.put("media", config.media);
+        data.put("duration", config.duration);
+        data.put("bookingId", config.bookingId);
+        data.put("type", config.type);
+        data.put("call_type", config.call_type);
+        data.put("channel_id", config.channel_id);
+        data.put("uuid", connectionId);
+        return data;
+    }
+
+    private static final ConcurrentHashMap<String, Entry> calls = new ConcurrentHashMap<>();
+    private static final Collection<Entry> callsView = Collections.unmodifiableCollection(calls.values());
+
+    /** Registers a call in the RECEIVED state, replacing any earlier entry for the same connectionId. */
+    public static Entry register(String connectionId, CallConfig config) {
+        Entry entry = new Entry(connectionId, config, CallClock.elapsedMillis());
+        calls.put(connectionId, entry);
+        return entry;
+    }
+
+    /** Registers a restored call unless a live entry for connectionId already exists, e.g. from a push. */
+    public static Entry registerIfAbsent(String connectionId, CallConfig config) {
+        Entry entry = new Entry(connectionId, config, CallClock.elapsedMillis());
+        Entry existing = calls.putIfAbsent(connectionId, entry);
+        return existing != null ? existing : entry;
+    }
+
+    public static Entry get(String connectionId) {
+        return connectionId != null ? calls.get(connectionId) : null;
+    }
+
+    public static CallConfig getConfig(String connectionId) {
+        Entry entry = get(connectionId);
+        return entry != null ? entry.config : null;
+    }
+
+    /**
+     * Moves a call to next. A repeated report of the call's current state is accepted and changes
+     * nothing. Returns false without changing anything if the call is unknown or the transition is not
+     * allowed from its current state.
+     */
+    public static boolean transition(String connectionId, CallState next) {
+        Entry entry = get(connectionId);
+        if (entry == null) {
+            Log.d(TAG, "Ignoring " + next + " for unknown connectionId: " + connectionId);
+            return false;
+        }
+        if (!entry.transitionTo(next, CallClock.elapsedMillis())) {
+            Log.w(TAG, "Rejected transition " + entry.getState() + " -> " + next + " for connectionId: " + connectionId);
+            FlightRecorder.record(FlightRecorder.Event.TRANSITION_REJECTED, connectionId);
+            return false;
+        }
+        return true;
+    }
+
+    /** Marks the call ENDED and drops it from the registry. */
+    public static Entry remove(String connectionId) {
+        Entry entry = connectionId != null ? calls.remove(connectionId) : null;
+        if (entry != null) {
+            entry.transitionTo(CallState.ENDED, CallClock.elapsedMillis());
+        }
+        return entry;
+    }
+
+    /**
+     * Live, read-only view of all registered calls. Iteration is weakly consistent: it never throws
+     * on concurrent changes and needs no copy, but may or may not reflect calls added or removed
+     * while iterating.
+     */
+    public static Collection<Entry> getAll() {
+        return callsView;
+    }
+}
@@ -7,98 +7,225 @@ import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Persists each call under its own file in {@code files/callkit_calls}, so saving or clearing one call
+ * only touches that call's bytes and concurrent writers for different calls cannot overwrite each other.
+ * Files are written to a temp file and renamed into place, so readers never see a partial record.
+ * <p>
+ * The in-memory map is authoritative: disk is read once per process and every later save or clear
+ * updates the map immediately and is persisted on {@link PersistenceExecutor}, with repeated writes for
+ * the same connection collapsed into the latest one.
+ */
 public class CallStateManager {
     private static final String TAG = "CallStateManager";
+    /** Legacy single-blob store, only read once to migrate its contents into per-call files. */
     private static final String PREFS_NAME = "callkit_state";
     private static final String KEY_ACTIVE_CALLS = "active_calls";
-    
+    private static final String CALLS_DIR = "callkit_calls";
+    private static final String CALL_FILE_PREFIX = "call_";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String WRITE_KEY_PREFIX = "callState:";
+
+    private static final Map<String, CallConfig> calls = new ConcurrentHashMap<>();
+    private static volatile boolean restored = false;
+    private static volatile File callsDir = null;
+
     public static void saveCallState(Context context, String connectionId, CallConfig config) {
+        ensureRestored(context);
+        calls.put(connectionId, config);
+        schedulePersist(connectionId);
+        Log.d(TAG, "Saved call state for connectionId: " + connectionId);
+    }
+
+    /** Returns a copy of the current call states, reading them from disk only on first use. */
+    public static Map<String, CallConfig> restoreCallStates(Context context) {
+        ensureRestored(context);
+        return new HashMap<>(calls);
+    }
+
+    public static void clearCallState(Context context, String connectionId) {
+        ensureRestored(context);
+        if (calls.remove(connectionId) != null) {
+            schedulePersist(connectionId);
+            Log.d(TAG, "Cleared call state for connectionId: " + connectionId);
+        }
+    }
+
+    public static void clearAllCallStates(Context context) {
+        ensureRestored(context);
+        calls.clear();
+        final File dir = callsDir;
+        PersistenceExecutor.execute(() -> deleteAllCallFiles(dir));
+        Log.d(TAG, "Cleared all call states");
+    }
+
+    private static void ensureRestored(Context context) {
+        if (restored) {
+            return;
+        }
+        synchronized (calls) {
+            if (!restored) {
+                callsDir = getCallsDir(context);
+                calls.putAll(readCallStates(context, callsDir));
+                restored = true;
+            }
+        }
+    }
+
+    private static void schedulePersist(final String connectionId) {
+        final File dir = callsDir;
+        PersistenceExecutor.submit(WRITE_KEY_PREFIX + connectionId, () -> persistCallState(dir, connectionId));
+    }
+
+    /** Writes whatever the in-memory map holds for connectionId, so a coalesced write is never stale. */
+    private static void persistCallState(File callsDir, String connectionId) {
+        CallConfig config = calls.get(connectionId);
         try {
-            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            String existingCalls = prefs.getString(KEY_ACTIVE_CALLS, "{}");
-            
-            JSONObject callsJson = new JSONObject(existingCalls);
-            JSONObject callData = new JSONObject();
-            callData.put("callId", config.callId);
-            callData.put("media", config.media);
-            callData.put("duration", config.duration);
-            callData.put("bookingId", config.bookingId);
-            callData.put("type", config.type);
-            callData.put("call_type", config.call_type);
-            callData.put("channel_id", config.channel_id);
-            callData.put("timestamp", System.currentTimeMillis());
-            
-            callsJson.put(connectionId, callData);
-            
-            prefs.edit().putString(KEY_ACTIVE_CALLS, callsJson.toString()).apply();
-            Log.d(TAG, "Saved call state for connectionId: " + connectionId);
-        } catch (JSONException e) {
-            Log.e(TAG, "Error saving call state", e);
+            if (config == null) {
+                getCallFile(callsDir, connectionId).delete();
+            } else {
+                writeCallFile(callsDir, connectionId, toJson(config, CallClock.wallMillis()));
+            }
+        } catch (JSONException | IOException e) {
+            Log.e(TAG, "Error persisting call state for connectionId: " + connectionId, e);
         }
     }
-    
-    public static Map<String, CallConfig> restoreCallStates(Context context) {
+
+    private static Map<String, CallConfig> readCallStates(Context context, File callsDir) {
         Map<String, CallConfig> callConfigs = new HashMap<>();
-        
+        migrateLegacyCallStates(context, callsDir);
+
+        File[] files = callsDir.listFiles();
+        if (files == null) {
+            return callConfigs;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(CALL_FILE_PREFIX) || name.endsWith(TEMP_FILE_SUFFIX)) {
+                continue;
+            }
+
+            try {
+                String connectionId = URLDecoder.decode(name.substring(CALL_FILE_PREFIX.length()), StandardCharsets.UTF_8.name());
+                callConfigs.put(connectionId, parseCallConfig(new JSONObject(readFile(file))));
+            } catch (JSONException | IOException e) {
+                Log.e(TAG, "Error restoring call state from " + name, e);
+            }
+        }
+
+        Log.d(TAG, "Restored " + callConfigs.size() + " call states from disk");
+        return callConfigs;
+    }
+
+    private static void deleteAllCallFiles(File callsDir) {
+        File[] files = callsDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static JSONObject toJson(CallConfig config, long timestamp) throws JSONException {
+        JSONObject callData = new JSONObject();
+        callData.put("callId", config.callId);
+        callData.put("media", config.media);
+        callData.put("duration", config.duration);
+        callData.put("bookingId", config.bookingId);
+        callData.put("type", config.type);
+        callData.put("call_type", config.call_type);
+        callData.put("channel_id", config.channel_id);
+        callData.put("timestamp", timestamp);
+        return callData;
+    }
+
+    private static CallConfig parseCallConfig(JSONObject callData) throws JSONException {
+        Object bookingIdObj = callData.opt("bookingId");
+        String bookingId = bookingIdObj != null ? bookingIdObj.toString() : "";
+        String type = callData.optString("type", "");
+        String callType = callData.optString("call_type", "");
+        String channelId = callData.optString("channel_id", "");
+        return new CallConfig(
+            callData.getString("callId"),
+            callData.getString("media"),
+            callData.getString("duration"),
+            bookingId,
+            type,
+            callType,
+            channelId
+        );
+    }
+
+    private static void migrateLegacyCallStates(Context context, File callsDir) {
+        final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!prefs.contains(KEY_ACTIVE_CALLS)) {
+            return;
+        }
+
         try {
-            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            String existingCalls = prefs.getString(KEY_ACTIVE_CALLS, "{}");
-            
-            JSONObject callsJson = new JSONObject(existingCalls);
+            JSONObject callsJson = new JSONObject(prefs.getString(KEY_ACTIVE_CALLS, "{}"));
             java.util.Iterator<String> keys = callsJson.keys();
-            
             while (keys.hasNext()) {
                 String connectionId = keys.next();
-                JSONObject callData = callsJson.getJSONObject(connectionId);
-                
-                Object bookingIdObj = callData.opt("bookingId");
-                String bookingId = bookingIdObj != null ? bookingIdObj.toString() : "";
-                String type = callData.optString("type", "");
-                String callType = callData.optString("call_type", "");
-                String channelId = callData.optString("channel_id", "");
-                CallConfig config = new CallConfig(
-                    callData.getString("callId"),
-                    callData.getString("media"),
-                    callData.getString("duration"),
-                    bookingId,
-                    type,
-                    callType,
-                    channelId
-                );
-                
-                callConfigs.put(connectionId, config);
+                writeCallFile(callsDir, connectionId, callsJson.getJSONObject(connectionId));
             }
-            
-            Log.d(TAG, "Restored " + callConfigs.size() + " call states");
-        } catch (JSONException e) {
-            Log.e(TAG, "Error restoring call states", e);
+            Log.d(TAG, "Migrated " + callsJson.length() + " call states from SharedPreferences");
+        } catch (JSONException | IOException e) {
+            Log.e(TAG, "Error migrating legacy call states", e);
         }
-        
-        return callConfigs;
+
+        PersistenceExecutor.execute(() -> prefs.edit().remove(KEY_ACTIVE_CALLS).commit());
     }
-    
-    public static void clearCallState(Context context, String connectionId) {
-        try {
-            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            String existingCalls = prefs.getString(KEY_ACTIVE_CALLS, "{}");
-            
-            JSONObject callsJson = new JSONObject(existingCalls);
-            callsJson.remove(connectionId);
-            
-            prefs.edit().putString(KEY_ACTIVE_CALLS, callsJson.toString()).apply();
-            Log.d(TAG, "Cleared call state for connectionId: " + connectionId);
-        } catch (JSONException e) {
-            Log.e(TAG, "Error clearing call state", e);
+
+    private static File getCallsDir(Context context) {
+        File dir = new File(context.getFilesDir(), CALLS_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Could not create call state directory " + dir);
         }
+        return dir;
     }
-    
-    public static void clearAllCallStates(Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        prefs.edit().putString(KEY_ACTIVE_CALLS, "{}").apply();
-        Log.d(TAG, "Cleared all call states");
+
+    /** connectionIds come from push payloads, so they are URL-encoded to keep them a single safe file name. */
+    private static File getCallFile(File callsDir, String connectionId) throws UnsupportedEncodingException {
+        return new File(callsDir, CALL_FILE_PREFIX + URLEncoder.encode(connectionId, StandardCharsets.UTF_8.name()));
     }
-}
 
+    private static void writeCallFile(File callsDir, String connectionId, JSONObject callData) throws IOException {
+        File target = getCallFile(callsDir, connectionId);
+        File temp = File.createTempFile(target.getName(), TEMP_FILE_SUFFIX, callsDir);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(callData.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Could not move call state into place for connectionId: " + connectionId);
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
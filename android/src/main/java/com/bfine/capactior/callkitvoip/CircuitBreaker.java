@@ -0,0 +1,168 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Count-based circuit breaker for one backend. Outcomes of the last WINDOW_SIZE requests are kept;
+ * once at least MIN_CALLS are recorded and the failure rate or slow-call rate reaches its threshold
+ * the circuit opens and requests are refused without touching the network. After OPEN_DURATION_MS a
+ * single trial request is let through (half-open): success closes the circuit, failure reopens it.
+ */
+public class CircuitBreaker {
+    private static final String TAG = "CircuitBreaker";
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    static final int WINDOW_SIZE = 10;
+    static final int MIN_CALLS = 5;
+    static final int FAILURE_RATE_THRESHOLD_PERCENT = 50;
+    static final int SLOW_CALL_RATE_THRESHOLD_PERCENT = 50;
+    static final long SLOW_CALL_THRESHOLD_MS = 3000;
+    static final long OPEN_DURATION_MS = 30_000;
+
+    private static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    /** Returns the breaker shared by every request to key, e.g. a backend base URL. */
+    public static CircuitBreaker forKey(String key) {
+        CircuitBreaker breaker = breakers.get(key);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(key);
+            breaker = breakers.putIfAbsent(key, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    public static Map<String, CircuitBreaker> getAll() {
+        return breakers;
+    }
+
+    private final String key;
+    private final boolean[] failures = new boolean[WINDOW_SIZE];
+    private final boolean[] slowCalls = new boolean[WINDOW_SIZE];
+    private int recorded = 0;
+    private int next = 0;
+
+    private State state = State.CLOSED;
+    private long openedAt = 0;
+    private boolean trialInFlight = false;
+    private long tripCount = 0;
+    private long rejectedCalls = 0;
+
+    CircuitBreaker(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns true if a request may be sent now. Every permitted request must be followed by
+     * exactly one call to {@link #onResult}.
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && CallClock.elapsedMillis() - openedAt >= OPEN_DURATION_MS) {
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+            Log.d(TAG, "Circuit half-open for " + key);
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !trialInFlight) {
+            trialInFlight = true;
+            return true;
+        }
+        rejectedCalls++;
+        return false;
+    }
+
+    public synchronized void onResult(boolean success, long durationMs) {
+        boolean slow = durationMs >= SLOW_CALL_THRESHOLD_MS;
+
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            if (success && !slow) {
+                Log.d(TAG, "Trial request succeeded, closing circuit for " + key);
+                state = State.CLOSED;
+                recorded = 0;
+                next = 0;
+            } else {
+                open();
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // A request admitted before the circuit opened; the decision has already been made.
+            return;
+        }
+
+        failures[next] = !success;
+        slowCalls[next] = slow;
+        next = (next + 1) % WINDOW_SIZE;
+        if (recorded < WINDOW_SIZE) {
+            recorded++;
+        }
+
+        if (recorded >= MIN_CALLS
+            && (failureRatePercent() >= FAILURE_RATE_THRESHOLD_PERCENT
+                || slowCallRatePercent() >= SLOW_CALL_RATE_THRESHOLD_PERCENT)) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = CallClock.elapsedMillis();
+        tripCount++;
+        Log.w(TAG, "Circuit opened for " + key + " (failure rate " + failureRatePercent()
+            + "%, slow-call rate " + slowCallRatePercent() + "%)");
+    }
+
+    /** Milliseconds until an open circuit lets a trial request through; 0 if it is not open. */
+    public synchronized long getRemainingOpenMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, OPEN_DURATION_MS - (CallClock.elapsedMillis() - openedAt));
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private int failureRatePercent() {
+        return ratePercent(failures);
+    }
+
+    private int slowCallRatePercent() {
+        return ratePercent(slowCalls);
+    }
+
+    private int ratePercent(boolean[] outcomes) {
+        if (recorded == 0) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < recorded; i++) {
+            if (outcomes[i]) {
+                count++;
+            }
+        }
+        return count * 100 / recorded;
+    }
+
+    public synchronized Map<String, Object> getSnapshot() {
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("state", state.name());
+        snapshot.put("tripCount", tripCount);
+        snapshot.put("rejectedCalls", rejectedCalls);
+        snapshot.put("failureRatePercent", failureRatePercent());
+        snapshot.put("slowCallRatePercent", slowCallRatePercent());
+        snapshot.put("recordedCalls", recorded);
+        return snapshot;
+    }
+}
@@ -0,0 +1,256 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only binary journal behind {@link EventQueueManager}. Every record has the same fixed layout
+ * (kind, event type id, sequence, timestamp, connectionId) so queuing or removing an event appends
+ * RECORD_SIZE bytes instead of rewriting the whole queue. Removals are written as tombstones and the
+ * file is compacted once tombstones outnumber live events. All writes run in order on
+ * {@link PersistenceExecutor}; replay reads on the caller's thread.
+ */
+public class EventJournal {
+    private static final String TAG = "EventJournal";
+    public static final String FILE_NAME = "callkit_event_queue.journal";
+
+    private static final byte KIND_ADD = 1;
+    private static final byte KIND_REMOVE = 2;
+    static final int MAX_CONNECTION_ID_BYTES = 128;
+    /** kind(1) + eventType(1) + sequence(8) + timestamp(8) + connectionId length(1) + connectionId bytes */
+    static final int RECORD_SIZE = 1 + 1 + 8 + 8 + 1 + MAX_CONNECTION_ID_BYTES;
+    private static final int COMPACT_MIN_TOMBSTONES = 64;
+
+    /** Index in this array is the event type id stored on disk; append only, never reorder. */
+    private static final String[] EVENT_TYPES = {
+        null, "callAnswered", "callRejected", "callEnded", "callCancelled"
+    };
+
+    private final File file;
+    private RandomAccessFile output;
+    private long nextSequence = 1;
+    private int liveCount = 0;
+    private int tombstoneCount = 0;
+
+    public EventJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Appends an event and returns it with its assigned sequence number. The record itself is written
+     * on {@link PersistenceExecutor}. Events whose type or connectionId cannot be encoded in a
+     * fixed-size record are returned but not persisted.
+     */
+    public synchronized EventQueueManager.QueuedEvent append(String eventName, String connectionId, long timestamp) {
+        EventQueueManager.QueuedEvent event = new EventQueueManager.QueuedEvent(eventName, connectionId, timestamp, nextSequence++);
+
+        byte eventType = eventTypeId(eventName);
+        byte[] idBytes = connectionId.getBytes(StandardCharsets.UTF_8);
+        if (eventType == 0 || idBytes.length > MAX_CONNECTION_ID_BYTES) {
+            Log.w(TAG, "Event " + eventName + " for connectionId " + connectionId + " cannot be journaled, keeping it in memory only");
+            return event;
+        }
+
+        final byte[] record = encode(KIND_ADD, eventType, event.sequence, timestamp, idBytes);
+        PersistenceExecutor.execute(() -> writeAdd(record));
+        return event;
+    }
+
+    public void appendRemoval(long sequence) {
+        appendRemovals(Collections.singletonList(sequence));
+    }
+
+    /** Appends tombstones for all given sequence numbers in a single write on {@link PersistenceExecutor}. */
+    public void appendRemovals(Collection<Long> sequences) {
+        if (sequences.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer batch = ByteBuffer.allocate(RECORD_SIZE * sequences.size());
+        for (Long sequence : sequences) {
+            batch.put(encode(KIND_REMOVE, (byte) 0, sequence, 0, new byte[0]));
+        }
+        final byte[] records = batch.array();
+        final int count = sequences.size();
+        PersistenceExecutor.execute(() -> writeRemovals(records, count));
+    }
+
+    /**
+     * Reads the journal and returns the live events in sequence order. Also advances the sequence
+     * counter past everything on disk, so call it once before the first append in a process.
+     */
+    public synchronized List<EventQueueManager.QueuedEvent> replay() {
+        Map<Long, EventQueueManager.QueuedEvent> live = new LinkedHashMap<>();
+        int tombstones = 0;
+
+        if (file.exists()) {
+            long recordCount = file.length() / RECORD_SIZE;
+            if (file.length() % RECORD_SIZE != 0) {
+                Log.w(TAG, "Journal has a partial trailing record, truncating");
+                truncateTo(recordCount * RECORD_SIZE);
+            }
+
+            byte[] idBytes = new byte[MAX_CONNECTION_ID_BYTES];
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                for (long i = 0; i < recordCount; i++) {
+                    byte kind = in.readByte();
+                    byte eventType = in.readByte();
+                    long sequence = in.readLong();
+                    long timestamp = in.readLong();
+                    int idLength = in.readUnsignedByte();
+                    in.readFully(idBytes);
+
+                    if (sequence >= nextSequence) {
+                        nextSequence = sequence + 1;
+                    }
+
+                    if (kind == KIND_REMOVE) {
+                        if (live.remove(sequence) != null) {
+                            tombstones++;
+                        }
+                    } else if (kind == KIND_ADD && eventType > 0 && eventType < EVENT_TYPES.length
+                            && idLength <= MAX_CONNECTION_ID_BYTES) {
+                        String connectionId = new String(idBytes, 0, idLength, StandardCharsets.UTF_8);
+                        live.put(sequence, new EventQueueManager.QueuedEvent(EVENT_TYPES[eventType], connectionId, timestamp, sequence));
+                    }
+                }
+            } catch (EOFException e) {
+                Log.w(TAG, "Journal ended unexpectedly while replaying", e);
+            } catch (IOException e) {
+                Log.e(TAG, "Error replaying event journal", e);
+            }
+        }
+
+        liveCount = live.size();
+        tombstoneCount = tombstones;
+        Log.d(TAG, "Replayed " + liveCount + " live events (" + tombstoneCount + " tombstones)");
+        return new ArrayList<>(live.values());
+    }
+
+    public void clear() {
+        PersistenceExecutor.execute(this::truncateAll);
+    }
+
+    private synchronized void writeAdd(byte[] record) {
+        if (writeRecords(record)) {
+            liveCount++;
+        }
+    }
+
+    private synchronized void writeRemovals(byte[] records, int count) {
+        if (writeRecords(records)) {
+            tombstoneCount += count;
+            liveCount = Math.max(0, liveCount - count);
+        }
+        compactIfNeeded();
+    }
+
+    private synchronized void truncateAll() {
+        truncateTo(0);
+        liveCount = 0;
+        tombstoneCount = 0;
+    }
+
+    private void compactIfNeeded() {
+        if (tombstoneCount < COMPACT_MIN_TOMBSTONES || tombstoneCount <= liveCount) {
+            return;
+        }
+
+        List<EventQueueManager.QueuedEvent> live = replay();
+        closeOutput();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            for (EventQueueManager.QueuedEvent event : live) {
+                out.write(encode(KIND_ADD, eventTypeId(event.eventName), event.sequence, event.timestamp,
+                        event.connectionId.getBytes(StandardCharsets.UTF_8)));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error compacting event journal", e);
+            tmp.delete();
+            return;
+        }
+
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Could not replace event journal with compacted copy");
+            tmp.delete();
+            return;
+        }
+        liveCount = live.size();
+        tombstoneCount = 0;
+        Log.d(TAG, "Compacted event journal to " + liveCount + " records");
+    }
+
+    private boolean writeRecords(byte[] records) {
+        try {
+            if (output == null) {
+                output = new RandomAccessFile(file, "rw");
+            }
+            output.seek(output.length());
+            output.write(records);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error appending to event journal", e);
+            closeOutput();
+            return false;
+        }
+    }
+
+    private void truncateTo(long length) {
+        try {
+            if (output == null) {
+                output = new RandomAccessFile(file, "rw");
+            }
+            output.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "Error truncating event journal", e);
+            closeOutput();
+        }
+    }
+
+    private void closeOutput() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException ignored) {
+            }
+            output = null;
+        }
+    }
+
+    private static byte[] encode(byte kind, byte eventType, long sequence, long timestamp, byte[] idBytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        buffer.put(kind);
+        buffer.put(eventType);
+        buffer.putLong(sequence);
+        buffer.putLong(timestamp);
+        buffer.put((byte) idBytes.length);
+        buffer.put(idBytes);
+        return buffer.array();
+    }
+
+    private static byte eventTypeId(String eventName) {
+        for (int i = 1; i < EVENT_TYPES.length; i++) {
+            if (EVENT_TYPES[i].equals(eventName)) {
+                return (byte) i;
+            }
+        }
+        return 0;
+    }
+}
@@ -4,31 +4,122 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import androidx.annotation.VisibleForTesting;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class EventQueueManager {
     private static final String TAG = "EventQueueManager";
+    /** Legacy JSON store, only read once to migrate its contents into the journal. */
     private static final String PREFS_NAME = "callkit_event_queue";
     private static final String KEY_EVENT_QUEUE = "event_queue";
-    private static final long MAX_EVENT_AGE_MS = 30000;
+    static final long MAX_EVENT_AGE_MS = 30000;
+    private static final int DEFAULT_CAPACITY = 64;
     
-    private static List<QueuedEvent> inMemoryQueue = new ArrayList<>();
+    /** How the queue stays within {@code capacity} events. */
+    public enum OverflowPolicy {
+        /** When full, evict the oldest queued event to make room. */
+        DROP_OLDEST("dropOldest"),
+        /** When full, reject the new event and keep the queue as it is. */
+        DROP_NEWEST("dropNewest"),
+        /**
+         * Keep only the latest event per connectionId: every new event replaces the queued events for
+         * its connectionId, full or not. When full with no event to replace, evict the oldest.
+         */
+        COALESCE("coalesce");
+        
+        /** Name used on the JS side. */
+        public final String value;
+        
+        OverflowPolicy(String value) {
+            this.value = value;
+        }
+        
+        public static OverflowPolicy fromValue(String value) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.value.equals(value)) {
+                    return policy;
+                }
+            }
+            return null;
+        }
+    }
+    
+    /** Queued events keyed by journal sequence number, in queue order. */
+    private static final Map<Long, QueuedEvent> queueIndex = new LinkedHashMap<>();
+    /**
+     * Queued events ordered by deadline, guarded by the queueIndex lock. Acknowledged events are left in
+     * place and skipped when they reach the head, so removal never has to search this queue.
+     */
+    private static final PriorityQueue<QueuedEvent> expiryIndex =
+        new PriorityQueue<>(11, (a, b) -> Long.compare(a.getDeadline(), b.getDeadline()));
+    private static volatile EventJournal journal = null;
+    /**
+     * Events replayed or migrated when the journal was opened, held until indexPersistedEvents merges
+     * them into the index. Guarded by the class lock, like journal.
+     */
+    private static List<QueuedEvent> persistedEvents = null;
+    private static boolean journalIndexed = false;
+    
+    private static final ScheduledExecutorService expiryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "CallKitVoip-EventExpiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static ScheduledFuture<?> expirySweep = null;
+    private static long expirySweepAt = Long.MAX_VALUE;
+    private static final AtomicLong expiredCount = new AtomicLong();
+    private static final Map<String, AtomicLong> expiredCountByEvent = new ConcurrentHashMap<>();
+    
+    /** Capacity, policy and backpressure counters below are guarded by the queueIndex lock. */
+    private static int capacity = DEFAULT_CAPACITY;
+    private static OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private static long droppedCount = 0;
+    private static long coalescedCount = 0;
+    private static int highWaterMark = 0;
     
     public static class QueuedEvent {
         public final String eventName;
         public final String connectionId;
+        /** Wall-clock time the event was queued; persisted so the event's age survives a process restart. */
         public final long timestamp;
+        public final long sequence;
+        /** {@link CallClock#elapsedMillis()} equivalent of timestamp, used for all age and expiry checks. */
+        final long queuedAtElapsed;
         
-        public QueuedEvent(String eventName, String connectionId, long timestamp) {
+        public QueuedEvent(String eventName, String connectionId, long timestamp, long sequence) {
             this.eventName = eventName;
             this.connectionId = connectionId;
             this.timestamp = timestamp;
+            this.sequence = sequence;
+            // Events replayed from disk only have a wall-clock timestamp. Convert their age once, clamped
+            // so a wall clock that moved backwards cannot make an event live longer than MAX_EVENT_AGE_MS.
+            long age = Math.max(0, CallClock.wallMillis() - timestamp);
+            this.queuedAtElapsed = CallClock.elapsedMillis() - age;
+        }
+        
+        /** Monotonic deadline, comparable with {@link CallClock#elapsedMillis()}. */
+        public long getDeadline() {
+            return queuedAtElapsed + MAX_EVENT_AGE_MS;
         }
     }
     
@@ -38,175 +129,360 @@ public class EventQueueManager {
             return;
         }
         
-        long timestamp = System.currentTimeMillis();
-        QueuedEvent event = new QueuedEvent(eventName, connectionId, timestamp);
+        long timestamp = CallClock.wallMillis();
+        EventJournal journal = getJournal(context);
+        List<Long> evictedSequences = new ArrayList<>();
         
-        synchronized (inMemoryQueue) {
-            inMemoryQueue.add(event);
+        synchronized (queueIndex) {
+            if (!makeRoom(connectionId, evictedSequences)) {
+                droppedCount++;
+                Log.w(TAG, "Event queue full (" + capacity + "), dropping new event: " + eventName + " for connectionId: " + connectionId);
+                return;
+            }
+            indexEvent(journal.append(eventName, connectionId, timestamp));
+            highWaterMark = Math.max(highWaterMark, queueIndex.size());
         }
         
-        persistQueue(context);
+        journal.appendRemovals(evictedSequences);
         Log.d(TAG, "Queued event: " + eventName + " for connectionId: " + connectionId);
     }
     
+    public static int getCapacity() {
+        synchronized (queueIndex) {
+            return capacity;
+        }
+    }
+    
+    public static OverflowPolicy getOverflowPolicy() {
+        synchronized (queueIndex) {
+            return overflowPolicy;
+        }
+    }
+    
+    public static void configure(int newCapacity, OverflowPolicy newPolicy) {
+        if (newCapacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        synchronized (queueIndex) {
+            capacity = newCapacity;
+            overflowPolicy = newPolicy;
+        }
+        Log.d(TAG, "Event queue configured: capacity " + newCapacity + ", overflow policy " + newPolicy);
+    }
+    
     public static List<QueuedEvent> getQueuedEvents(Context context) {
-        List<QueuedEvent> allEvents = new ArrayList<>();
-        
-        synchronized (inMemoryQueue) {
-            allEvents.addAll(inMemoryQueue);
-        }
-        
-        List<QueuedEvent> persistedEvents = restoreQueue(context);
-        if (persistedEvents != null && !persistedEvents.isEmpty()) {
-            for (QueuedEvent persistedEvent : persistedEvents) {
-                boolean exists = false;
-                for (QueuedEvent inMemoryEvent : allEvents) {
-                    if (inMemoryEvent.connectionId.equals(persistedEvent.connectionId) &&
-                        inMemoryEvent.eventName.equals(persistedEvent.eventName) &&
-                        inMemoryEvent.timestamp == persistedEvent.timestamp) {
-                        exists = true;
-                        break;
-                    }
-                }
-                if (!exists) {
-                    allEvents.add(persistedEvent);
-                }
+        List<QueuedEvent> allEvents;
+        
+        synchronized (queueIndex) {
+            indexPersistedEvents(context);
+            if (queueIndex.isEmpty()) {
+                return Collections.emptyList();
             }
+            allEvents = new ArrayList<>(queueIndex.values());
         }
         
         return filterStaleEvents(allEvents);
     }
     
     public static void clearQueue(Context context) {
-        synchronized (inMemoryQueue) {
-            inMemoryQueue.clear();
+        synchronized (queueIndex) {
+            // Take any not yet indexed events first so they cannot come back after the clear.
+            indexPersistedEvents(context);
+            queueIndex.clear();
+            expiryIndex.clear();
         }
         
         if (context != null) {
-            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            prefs.edit().putString(KEY_EVENT_QUEUE, "[]").apply();
+            getJournal(context).clear();
             Log.d(TAG, "Cleared event queue");
         }
     }
     
     public static void removeEvent(Context context, String eventName, String connectionId) {
-        synchronized (inMemoryQueue) {
-            Iterator<QueuedEvent> iterator = inMemoryQueue.iterator();
+        List<Long> removedSequences = new ArrayList<>();
+        
+        synchronized (queueIndex) {
+            indexPersistedEvents(context);
+            Iterator<QueuedEvent> iterator = queueIndex.values().iterator();
             while (iterator.hasNext()) {
                 QueuedEvent event = iterator.next();
                 if (event.eventName.equals(eventName) && event.connectionId.equals(connectionId)) {
                     iterator.remove();
+                    removedSequences.add(event.sequence);
                 }
             }
         }
         
         if (context != null) {
-            List<QueuedEvent> persistedEvents = restoreQueue(context);
-            if (persistedEvents != null) {
-                Iterator<QueuedEvent> iterator = persistedEvents.iterator();
-                while (iterator.hasNext()) {
-                    QueuedEvent event = iterator.next();
-                    if (event.eventName.equals(eventName) && event.connectionId.equals(connectionId)) {
-                        iterator.remove();
-                    }
+            getJournal(context).appendRemovals(removedSequences);
+        }
+    }
+    
+    /**
+     * Removes a batch of delivered events with one pass over the index and one journal write,
+     * instead of calling {@link #removeEvent} per event.
+     */
+    public static void acknowledgeEvents(Context context, Collection<QueuedEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        
+        List<Long> acknowledgedSequences = new ArrayList<>(events.size());
+        
+        synchronized (queueIndex) {
+            for (QueuedEvent event : events) {
+                if (queueIndex.remove(event.sequence) != null) {
+                    acknowledgedSequences.add(event.sequence);
                 }
-                persistQueue(context, persistedEvents);
             }
         }
+        
+        if (context != null) {
+            getJournal(context).appendRemovals(acknowledgedSequences);
+        }
+        Log.d(TAG, "Acknowledged " + acknowledgedSequences.size() + " events");
     }
     
-    private static List<QueuedEvent> filterStaleEvents(List<QueuedEvent> events) {
-        long currentTime = System.currentTimeMillis();
-        List<QueuedEvent> filtered = new ArrayList<>();
+    /**
+     * Merges the events found when the journal was opened into the index, keyed by sequence number so
+     * the merge is a single linear pass. This happens once per process: every later write to the
+     * journal goes through this class, so the index is already current. Must be called while holding
+     * the queueIndex lock.
+     */
+    private static void indexPersistedEvents(Context context) {
+        if (context == null || journalIndexed) {
+            return;
+        }
         
-        for (QueuedEvent event : events) {
-            long age = currentTime - event.timestamp;
-            if (age <= MAX_EVENT_AGE_MS) {
-                filtered.add(event);
-            } else {
-                Log.d(TAG, "Filtered out stale event: " + event.eventName + " (age: " + age + "ms)");
+        EventJournal journal = getJournal(context);
+        
+        List<QueuedEvent> persistedEvents = takePersistedEvents();
+        for (QueuedEvent event : persistedEvents) {
+            if (!queueIndex.containsKey(event.sequence)) {
+                indexEvent(event);
             }
         }
+        journalIndexed = true;
         
-        return filtered;
+        List<Long> evictedSequences = new ArrayList<>();
+        Iterator<QueuedEvent> oldest = queueIndex.values().iterator();
+        while (queueIndex.size() > capacity && oldest.hasNext()) {
+            evictedSequences.add(oldest.next().sequence);
+            oldest.remove();
+            droppedCount++;
+        }
+        journal.appendRemovals(evictedSequences);
+        highWaterMark = Math.max(highWaterMark, queueIndex.size());
+        Log.d(TAG, "Indexed " + persistedEvents.size() + " events from storage");
     }
     
-    private static void persistQueue(Context context) {
-        if (context == null) {
-            return;
+    public static Map<String, Object> getStats(Context context) {
+        Map<String, Object> stats = new HashMap<>();
+        
+        synchronized (queueIndex) {
+            indexPersistedEvents(context);
+            stats.put("queuedCount", queueIndex.size());
+            stats.put("capacity", capacity);
+            stats.put("overflowPolicy", overflowPolicy.value);
+            stats.put("droppedCount", droppedCount);
+            stats.put("coalescedCount", coalescedCount);
+            stats.put("highWaterMark", highWaterMark);
+        }
+        stats.put("expiredCount", expiredCount.get());
+        for (Map.Entry<String, AtomicLong> entry : expiredCountByEvent.entrySet()) {
+            String eventName = entry.getKey();
+            stats.put("expired" + Character.toUpperCase(eventName.charAt(0)) + eventName.substring(1), entry.getValue().get());
         }
         
-        try {
-            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            JSONArray eventsArray = new JSONArray();
-            
-            synchronized (inMemoryQueue) {
-                for (QueuedEvent event : inMemoryQueue) {
-                    JSONObject eventObj = new JSONObject();
-                    eventObj.put("eventName", event.eventName);
-                    eventObj.put("connectionId", event.connectionId);
-                    eventObj.put("timestamp", event.timestamp);
-                    eventsArray.put(eventObj);
+        return stats;
+    }
+    
+    /** Entries in the expiry index, including removed events that have not reached their deadline yet. */
+    @VisibleForTesting
+    static int getExpiryIndexSize() {
+        synchronized (queueIndex) {
+            return expiryIndex.size();
+        }
+    }
+    
+    /**
+     * Applies the overflow policy before a new event for connectionId is indexed: under COALESCE drops
+     * the queued events for the same connectionId, then evicts until the new event fits, collecting the
+     * removed sequence numbers. Returns false if the new event should be dropped instead.
+     * Must be called while holding the queueIndex lock.
+     */
+    private static boolean makeRoom(String connectionId, List<Long> evictedSequences) {
+        if (overflowPolicy == OverflowPolicy.COALESCE) {
+            Iterator<QueuedEvent> iterator = queueIndex.values().iterator();
+            while (iterator.hasNext()) {
+                QueuedEvent event = iterator.next();
+                if (event.connectionId.equals(connectionId)) {
+                    iterator.remove();
+                    evictedSequences.add(event.sequence);
+                    coalescedCount++;
+                    Log.d(TAG, "Coalesced queued " + event.eventName + " for connectionId: " + connectionId);
                 }
             }
+        }
+        
+        while (queueIndex.size() >= capacity) {
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                return false;
+            }
             
-            prefs.edit().putString(KEY_EVENT_QUEUE, eventsArray.toString()).apply();
-            Log.d(TAG, "Persisted " + eventsArray.length() + " events to storage");
-        } catch (JSONException e) {
-            Log.e(TAG, "Error persisting event queue", e);
+            QueuedEvent victim = queueIndex.values().iterator().next();
+            queueIndex.remove(victim.sequence);
+            evictedSequences.add(victim.sequence);
+            droppedCount++;
+            Log.w(TAG, "Event queue full (" + capacity + "), evicted " + victim.eventName + " for connectionId: " + victim.connectionId);
         }
+        return true;
     }
     
-    private static void persistQueue(Context context, List<QueuedEvent> events) {
-        if (context == null) {
+    /** Must be called while holding the queueIndex lock. */
+    private static void indexEvent(QueuedEvent event) {
+        queueIndex.put(event.sequence, event);
+        expiryIndex.add(event);
+        scheduleExpirySweep(event.getDeadline());
+        
+        // Removed events stay in expiryIndex until their deadline; rebuild it before they can outnumber
+        // the live ones so a flood of evictions cannot grow it past the queue bound.
+        if (expiryIndex.size() > 2 * Math.max(queueIndex.size(), capacity)) {
+            expiryIndex.clear();
+            expiryIndex.addAll(queueIndex.values());
+        }
+    }
+    
+    /** Must be called while holding the queueIndex lock. */
+    private static void scheduleExpirySweep(long deadline) {
+        if (deadline >= expirySweepAt) {
             return;
         }
+        if (expirySweep != null) {
+            expirySweep.cancel(false);
+        }
         
-        try {
-            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            JSONArray eventsArray = new JSONArray();
+        long delay = Math.max(0, deadline - CallClock.elapsedMillis());
+        expirySweepAt = deadline;
+        expirySweep = expiryExecutor.schedule(EventQueueManager::expireEvents, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Runs on the expiry thread: drops every event whose deadline has passed in a single pass over the
+     * head of expiryIndex, tombstones them in the journal and schedules the next sweep.
+     */
+    @VisibleForTesting
+    static void expireEvents() {
+        List<Long> expiredSequences = new ArrayList<>();
+        
+        synchronized (queueIndex) {
+            expirySweep = null;
+            expirySweepAt = Long.MAX_VALUE;
             
-            for (QueuedEvent event : events) {
-                JSONObject eventObj = new JSONObject();
-                eventObj.put("eventName", event.eventName);
-                eventObj.put("connectionId", event.connectionId);
-                eventObj.put("timestamp", event.timestamp);
-                eventsArray.put(eventObj);
+            long now = CallClock.elapsedMillis();
+            while (!expiryIndex.isEmpty() && expiryIndex.peek().getDeadline() <= now) {
+                QueuedEvent event = expiryIndex.poll();
+                if (queueIndex.remove(event.sequence) != null) {
+                    expiredSequences.add(event.sequence);
+                    expiredCount.incrementAndGet();
+                    AtomicLong eventCount = expiredCountByEvent.get(event.eventName);
+                    if (eventCount == null) {
+                        eventCount = new AtomicLong();
+                        expiredCountByEvent.put(event.eventName, eventCount);
+                    }
+                    eventCount.incrementAndGet();
+                    Log.w(TAG, "Expired queued event: " + event.eventName + " for connectionId: " + event.connectionId + " (JS listener never attached)");
+                }
             }
             
-            prefs.edit().putString(KEY_EVENT_QUEUE, eventsArray.toString()).apply();
-            Log.d(TAG, "Persisted " + eventsArray.length() + " events to storage");
-        } catch (JSONException e) {
-            Log.e(TAG, "Error persisting event queue", e);
+            if (!expiryIndex.isEmpty()) {
+                scheduleExpirySweep(expiryIndex.peek().getDeadline());
+            }
+        }
+        
+        EventJournal currentJournal = journal;
+        if (currentJournal != null && !expiredSequences.isEmpty()) {
+            currentJournal.appendRemovals(expiredSequences);
         }
     }
     
-    private static List<QueuedEvent> restoreQueue(Context context) {
-        if (context == null) {
-            return new ArrayList<>();
+    private static List<QueuedEvent> filterStaleEvents(List<QueuedEvent> events) {
+        long currentTime = CallClock.elapsedMillis();
+        List<QueuedEvent> filtered = new ArrayList<>();
+        
+        for (QueuedEvent event : events) {
+            long age = currentTime - event.queuedAtElapsed;
+            if (age <= MAX_EVENT_AGE_MS) {
+                filtered.add(event);
+            } else {
+                Log.d(TAG, "Filtered out stale event: " + event.eventName + " (age: " + age + "ms)");
+            }
         }
         
-        List<QueuedEvent> events = new ArrayList<>();
+        return filtered;
+    }
+    
+    /**
+     * Opens the journal on first use. It is replayed exactly once, here, before anything is appended:
+     * replay advances the sequence counter and resets the journal's record counts, so a second replay
+     * would race with writes still queued on {@link PersistenceExecutor}.
+     */
+    private static synchronized EventJournal getJournal(Context context) {
+        if (journal == null) {
+            EventJournal opened = new EventJournal(new File(context.getFilesDir(), EventJournal.FILE_NAME));
+            List<QueuedEvent> events = opened.replay();
+            events.addAll(migrateLegacyQueue(context, opened));
+            persistedEvents = events;
+            journal = opened;
+        }
+        return journal;
+    }
+    
+    private static synchronized List<QueuedEvent> takePersistedEvents() {
+        List<QueuedEvent> events = persistedEvents;
+        persistedEvents = null;
+        return events != null ? events : Collections.<QueuedEvent>emptyList();
+    }
+    
+    /** Forgets the open journal and the index, as a new process would, so the next use replays the journal. */
+    @VisibleForTesting
+    static void reopenJournal() {
+        synchronized (queueIndex) {
+            queueIndex.clear();
+            expiryIndex.clear();
+            journalIndexed = false;
+        }
+        synchronized (EventQueueManager.class) {
+            journal = null;
+            persistedEvents = null;
+        }
+    }
+    
+    /**
+     * Appends the legacy SharedPreferences queue to the journal and returns the appended events. Their
+     * records are still queued on {@link PersistenceExecutor}, so the caller indexes them from this list
+     * rather than expecting a replay to find them.
+     */
+    private static List<QueuedEvent> migrateLegacyQueue(Context context, EventJournal journal) {
+        final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!prefs.contains(KEY_EVENT_QUEUE)) {
+            return Collections.emptyList();
+        }
         
+        List<QueuedEvent> migrated = new ArrayList<>();
         try {
-            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            String queueJson = prefs.getString(KEY_EVENT_QUEUE, "[]");
-            
-            JSONArray eventsArray = new JSONArray(queueJson);
+            JSONArray eventsArray = new JSONArray(prefs.getString(KEY_EVENT_QUEUE, "[]"));
             for (int i = 0; i < eventsArray.length(); i++) {
                 JSONObject eventObj = eventsArray.getJSONObject(i);
-                String eventName = eventObj.getString("eventName");
-                String connectionId = eventObj.getString("connectionId");
-                long timestamp = eventObj.getLong("timestamp");
-                
-                events.add(new QueuedEvent(eventName, connectionId, timestamp));
+                migrated.add(journal.append(eventObj.getString("eventName"), eventObj.getString("connectionId"), eventObj.getLong("timestamp")));
             }
-            
-            Log.d(TAG, "Restored " + events.size() + " events from storage");
+            Log.d(TAG, "Migrated " + eventsArray.length() + " events from SharedPreferences to journal");
         } catch (JSONException e) {
-            Log.e(TAG, "Error restoring event queue", e);
+            Log.e(TAG, "Error migrating legacy event queue", e);
         }
         
-        return events;
+        // Queued after the journal appends above, so the legacy copy is only dropped once they are on disk.
+        PersistenceExecutor.execute(() -> prefs.edit().remove(KEY_EVENT_QUEUE).commit());
+        return migrated;
     }
 }
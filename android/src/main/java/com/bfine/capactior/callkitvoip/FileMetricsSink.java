@@ -0,0 +1,89 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends each metrics batch to a line-delimited JSON file: one {"type":"call"} line per completed
+ * call and one {"type":"histograms"} line per batch. When the file passes maxBytes it is renamed to
+ * the single rotated file, replacing the previous one, so disk use stays under twice maxBytes.
+ */
+public class FileMetricsSink implements MetricsSink {
+    private static final String TAG = "FileMetricsSink";
+    public static final String DIR_NAME = "callkit_metrics";
+    public static final String FILE_NAME = "metrics.ndjson";
+    public static final String ROTATED_FILE_NAME = "metrics.1.ndjson";
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+
+    private final File file;
+    private final File rotatedFile;
+    private final long maxBytes;
+
+    public FileMetricsSink(File filesDir, long maxBytes) {
+        File dir = new File(filesDir, DIR_NAME);
+        this.file = new File(dir, FILE_NAME);
+        this.rotatedFile = new File(dir, ROTATED_FILE_NAME);
+        this.maxBytes = maxBytes;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void export(List<Map<String, Object>> completedCalls, Map<String, Map<String, Object>> histograms) {
+        StringBuilder lines = new StringBuilder();
+        long exportedAt = CallClock.wallMillis();
+        try {
+            for (Map<String, Object> callRecord : completedCalls) {
+                JSONObject line = new JSONObject(callRecord);
+                line.put("type", "call");
+                lines.append(line.toString()).append('\n');
+            }
+            JSONObject histogramLine = new JSONObject();
+            histogramLine.put("type", "histograms");
+            histogramLine.put("exportedAt", exportedAt);
+            for (Map.Entry<String, Map<String, Object>> histogram : histograms.entrySet()) {
+                histogramLine.put(histogram.getKey(), new JSONObject(histogram.getValue()));
+            }
+            lines.append(histogramLine.toString()).append('\n');
+        } catch (JSONException e) {
+            Log.e(TAG, "Error encoding metrics batch", e);
+            return;
+        }
+
+        final byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+        PersistenceExecutor.execute(() -> append(bytes));
+    }
+
+    private void append(byte[] bytes) {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Could not create metrics directory " + dir);
+            return;
+        }
+
+        if (file.length() + bytes.length > maxBytes && file.length() > 0) {
+            rotatedFile.delete();
+            if (!file.renameTo(rotatedFile)) {
+                Log.w(TAG, "Could not rotate metrics file, truncating it instead");
+                file.delete();
+            }
+        }
+
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing metrics file", e);
+        }
+    }
+}
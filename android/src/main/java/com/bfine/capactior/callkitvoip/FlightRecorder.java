@@ -0,0 +1,125 @@
+package com.bfine.capactior.callkitvoip;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on, fixed-size ring buffer of call lifecycle events, kept in memory so the last few hundred
+ * transitions are still available when a call misbehaves in the field. All storage is preallocated
+ * and {@link #record} only writes primitives, so it is cheap enough to call on every transition from
+ * any thread. Once full, the oldest records are overwritten.
+ */
+public final class FlightRecorder {
+    public enum Event {
+        PUSH_RECEIVED,
+        PUSH_CANCELLED,
+        INCOMING_CALL_ADDED,
+        NOTIFICATION_FALLBACK,
+        CONNECTION_CREATED,
+        CONNECTION_FAILED,
+        RINGING,
+        RING_TIMEOUT,
+        ANSWERED,
+        REJECTED,
+        DISCONNECTED,
+        ABORTED,
+        SET_ACTIVE,
+        NOTIFICATION_SHOWN,
+        NOTIFICATION_REJECTED,
+        FOREGROUND_SERVICE_STOPPED,
+        EVENT_DELIVERED,
+        EVENT_QUEUED,
+        QUEUED_EVENT_FLUSHED,
+        JS_ANSWER,
+        JS_REJECT,
+        JS_HANGUP,
+        JS_END,
+        JS_CONNECTED,
+        TRANSITION_REJECTED,
+        REJECT_DEDUPLICATED
+    }
+
+    private static final int CAPACITY = 512;
+    private static final int MASK = CAPACITY - 1;
+    private static final Event[] EVENTS = Event.values();
+
+    private static final AtomicLong cursor = new AtomicLong();
+    /** Sequence number stored in each slot once its write completes; -1 while a write is in progress. */
+    private static final AtomicLongArray slotSequences = new AtomicLongArray(CAPACITY);
+    /*
+     * The record fields are atomic arrays too, so dump's field reads cannot be reordered past its
+     * second check of the slot sequence, and record's field writes cannot be reordered before the -1
+     * marker. Writes use lazySet, an ordered store without a full fence.
+     */
+    private static final AtomicLongArray timestampsNanos = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray threadIds = new AtomicLongArray(CAPACITY);
+    private static final AtomicIntegerArray connectionHashes = new AtomicIntegerArray(CAPACITY);
+    private static final AtomicIntegerArray eventCodes = new AtomicIntegerArray(CAPACITY);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slotSequences.set(i, -1);
+        }
+    }
+
+    private FlightRecorder() {
+    }
+
+    public static void record(Event event, String connectionId) {
+        long sequence = cursor.getAndIncrement();
+        int slot = (int) (sequence & MASK);
+
+        slotSequences.set(slot, -1);
+        timestampsNanos.lazySet(slot, CallClock.elapsedNanos());
+        threadIds.lazySet(slot, Thread.currentThread().getId());
+        connectionHashes.lazySet(slot, hash(connectionId));
+        eventCodes.lazySet(slot, event.ordinal());
+        slotSequences.lazySet(slot, sequence);
+    }
+
+    /** Hash stored for connectionId in each record, so a dump can be matched against known calls. */
+    public static int hash(String connectionId) {
+        return connectionId != null ? connectionId.hashCode() : 0;
+    }
+
+    public static long getRecordedCount() {
+        return cursor.get();
+    }
+
+    public static int getCapacity() {
+        return CAPACITY;
+    }
+
+    /**
+     * Returns the retained records, oldest first, one per line:
+     * {@code <elapsedRealtime ms> <thread id> <connectionId hash, hex> <event>}.
+     * Slots overwritten while dumping are skipped.
+     */
+    public static String dump() {
+        long end = cursor.get();
+        long start = Math.max(0, end - CAPACITY);
+        StringBuilder out = new StringBuilder((int) (end - start) * 40);
+
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & MASK);
+            if (slotSequences.get(slot) != sequence) {
+                continue;
+            }
+            long timestampNanos = timestampsNanos.get(slot);
+            long threadId = threadIds.get(slot);
+            int connectionHash = connectionHashes.get(slot);
+            int eventCode = eventCodes.get(slot);
+            if (slotSequences.get(slot) != sequence) {
+                continue;
+            }
+
+            out.append(timestampNanos / 1_000_000).append('.')
+                .append(String.format(java.util.Locale.US, "%03d", (timestampNanos / 1_000) % 1_000)).append(' ')
+                .append(threadId).append(' ')
+                .append(Integer.toHexString(connectionHash)).append(' ')
+                .append(EVENTS[eventCode]).append('\n');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,42 @@
+package com.bfine.capactior.callkitvoip;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import java.util.List;
+import java.util.Map;
+
+/** Delivers each metrics batch to JS as a single "callMetrics" event, if the plugin is loaded. */
+public class JsBridgeMetricsSink implements MetricsSink {
+    public static final String EVENT_NAME = "callMetrics";
+
+    @Override
+    public void export(List<Map<String, Object>> completedCalls, Map<String, Map<String, Object>> histograms) {
+        CallKitVoipPlugin plugin = CallKitVoipPlugin.getInstance();
+        if (plugin == null) {
+            return;
+        }
+
+        JSArray calls = new JSArray();
+        for (Map<String, Object> callRecord : completedCalls) {
+            calls.put(toJSObject(callRecord));
+        }
+        JSObject histogramsObj = new JSObject();
+        for (Map.Entry<String, Map<String, Object>> histogram : histograms.entrySet()) {
+            histogramsObj.put(histogram.getKey(), toJSObject(histogram.getValue()));
+        }
+
+        JSObject data = new JSObject();
+        data.put("calls", calls);
+        data.put("histograms", histogramsObj);
+        plugin.notifyMetrics(EVENT_NAME, data);
+    }
+
+    private static JSObject toJSObject(Map<String, Object> values) {
+        JSObject obj = new JSObject();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            obj.put(entry.getKey(), entry.getValue());
+        }
+        return obj;
+    }
+}
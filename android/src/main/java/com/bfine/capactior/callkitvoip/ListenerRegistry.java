@@ -0,0 +1,44 @@
+package com.bfine.capactior.callkitvoip;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plugin-owned count of JS listeners per event name. Kept current by the plugin's
+ * addListener/removeListener/removeAllListeners overrides so lookups never need reflection.
+ */
+public class ListenerRegistry {
+    private final ConcurrentHashMap<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+    public void add(String eventName) {
+        AtomicInteger count = counts.get(eventName);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = counts.putIfAbsent(eventName, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    public void remove(String eventName) {
+        AtomicInteger count = counts.get(eventName);
+        if (count == null) {
+            return;
+        }
+        int current;
+        do {
+            current = count.get();
+        } while (current > 0 && !count.compareAndSet(current, current - 1));
+    }
+
+    public void clear() {
+        counts.clear();
+    }
+
+    public boolean hasListeners(String eventName) {
+        AtomicInteger count = counts.get(eventName);
+        return count != null && count.get() > 0;
+    }
+}
@@ -0,0 +1,177 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects completed-call records from {@link CallQualityMonitor} and hands them, together with a
+ * histogram snapshot, to every registered {@link MetricsSink} in batches on a background thread. A
+ * batch goes out every flush interval, or sooner once maxBatchSize calls are waiting. With no sinks
+ * registered nothing is collected.
+ */
+public class MetricsExporter {
+    private static final String TAG = "MetricsExporter";
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 60000;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 20;
+    /** Records kept while waiting for a flush; older ones are dropped past this. */
+    private static final int MAX_PENDING_RECORDS = 256;
+
+    private static final List<MetricsSink> sinks = new CopyOnWriteArrayList<>();
+    private static final ConcurrentLinkedQueue<Map<String, Object>> pendingRecords = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pendingCount = new AtomicInteger();
+    private static final AtomicLong droppedRecords = new AtomicLong();
+
+    private static final ScheduledExecutorService exportExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "CallKitVoip-Metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static ScheduledFuture<?> periodicExport = null;
+    private static volatile long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+    private static volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    public static synchronized void addSink(MetricsSink sink) {
+        if (!sinks.contains(sink)) {
+            sinks.add(sink);
+        }
+        schedulePeriodicExport();
+    }
+
+    public static synchronized void removeSink(MetricsSink sink) {
+        sinks.remove(sink);
+        if (sinks.isEmpty()) {
+            clearPendingRecords();
+        }
+        schedulePeriodicExport();
+    }
+
+    /**
+     * Registers newSinks and removes every other sink that is an instance of one of replacedClasses.
+     * New sinks are added before old ones go, so the sink set is never empty in between and records
+     * waiting for export are handed to the new sinks instead of being dropped.
+     */
+    public static synchronized void replaceSinks(List<MetricsSink> newSinks, Class<?>... replacedClasses) {
+        for (MetricsSink sink : newSinks) {
+            if (!sinks.contains(sink)) {
+                sinks.add(sink);
+            }
+        }
+        for (MetricsSink sink : sinks) {
+            if (!newSinks.contains(sink) && isInstanceOfAny(sink, replacedClasses)) {
+                sinks.remove(sink);
+            }
+        }
+        if (sinks.isEmpty()) {
+            clearPendingRecords();
+        }
+        schedulePeriodicExport();
+    }
+
+    private static boolean isInstanceOfAny(MetricsSink sink, Class<?>[] classes) {
+        for (Class<?> sinkClass : classes) {
+            if (sinkClass.isInstance(sink)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void clearPendingRecords() {
+        pendingRecords.clear();
+        pendingCount.set(0);
+    }
+
+    public static synchronized void configure(long newFlushIntervalMs, int newMaxBatchSize) {
+        if (newFlushIntervalMs < 1000) {
+            throw new IllegalArgumentException("flushIntervalMs must be at least 1000");
+        }
+        if (newMaxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        flushIntervalMs = newFlushIntervalMs;
+        maxBatchSize = newMaxBatchSize;
+        schedulePeriodicExport();
+    }
+
+    public static boolean isEnabled() {
+        return !sinks.isEmpty();
+    }
+
+    /** Queues a completed-call record for the next batch. */
+    public static void enqueue(Map<String, Object> callRecord) {
+        if (sinks.isEmpty()) {
+            return;
+        }
+
+        pendingRecords.add(callRecord);
+        int pending = pendingCount.incrementAndGet();
+        while (pending > MAX_PENDING_RECORDS && pendingRecords.poll() != null) {
+            pending = pendingCount.decrementAndGet();
+            droppedRecords.incrementAndGet();
+        }
+
+        if (pending >= maxBatchSize) {
+            exportExecutor.execute(MetricsExporter::exportBatch);
+        }
+    }
+
+    /** Exports whatever is pending right away, without waiting for the flush interval. */
+    public static void flush() {
+        exportExecutor.execute(MetricsExporter::exportBatch);
+    }
+
+    private static void schedulePeriodicExport() {
+        if (periodicExport != null) {
+            periodicExport.cancel(false);
+            periodicExport = null;
+        }
+        if (!sinks.isEmpty()) {
+            periodicExport = exportExecutor.scheduleWithFixedDelay(MetricsExporter::exportBatch,
+                flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Runs on the export thread. */
+    private static void exportBatch() {
+        if (sinks.isEmpty()) {
+            return;
+        }
+
+        List<Map<String, Object>> batch = new ArrayList<>();
+        Map<String, Object> record;
+        while ((record = pendingRecords.poll()) != null) {
+            pendingCount.decrementAndGet();
+            batch.add(record);
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long dropped = droppedRecords.getAndSet(0);
+        if (dropped > 0) {
+            Log.w(TAG, "Dropped " + dropped + " call records while waiting for export");
+        }
+
+        Map<String, Map<String, Object>> histograms = CallQualityMonitor.getLatencyHistograms();
+        for (MetricsSink sink : sinks) {
+            try {
+                sink.export(batch, histograms);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Metrics sink " + sink.getClass().getSimpleName() + " failed", e);
+            }
+        }
+        Log.d(TAG, "Exported " + batch.size() + " call records to " + sinks.size() + " sinks");
+    }
+}
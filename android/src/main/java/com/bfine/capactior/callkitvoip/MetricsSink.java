@@ -0,0 +1,16 @@
+package com.bfine.capactior.callkitvoip;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives call metrics from {@link MetricsExporter} in batches, always on the exporter's background
+ * thread. Implementations must not block for long; a slow sink delays every sink after it.
+ */
+public interface MetricsSink {
+    /**
+     * @param completedCalls one record per call that ended since the previous batch, oldest first
+     * @param histograms     snapshot of every stage latency histogram at export time, keyed by histogram name
+     */
+    void export(List<Map<String, Object>> completedCalls, Map<String, Map<String, Object>> histograms);
+}
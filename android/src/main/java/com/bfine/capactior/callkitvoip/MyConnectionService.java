@@ -17,6 +17,7 @@ import android.net.Uri;
 import android.util.Log;
 
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 
 import com.bfine.capactior.callkitvoip.androidcall.VoipForegroundService;
 import com.getcapacitor.Bridge;
@@ -27,11 +28,13 @@ import android.app.NotificationManager;
 public class MyConnectionService extends ConnectionService {
 
     private static final String TAG = "MyConnectionService";
-    private static final long CALL_TIMEOUT_MS = 30000;
+    static final long CALL_TIMEOUT_MS = 30000;
     private static Connection currentConnection;
     private static Handler timeoutHandler;
     private static Runnable timeoutRunnable;
     private static String timeoutConnectionId;
+    /** {@link CallClock#elapsedMillis()} at which the ring timeout is due. */
+    private static long timeoutDeadline;
 
     public static Connection getConnection() {
         return currentConnection;
@@ -88,6 +91,7 @@ public class MyConnectionService extends ConnectionService {
                 public void run() {
                     try {
                         conn.setActive();
+                        FlightRecorder.record(FlightRecorder.Event.SET_ACTIVE, connectionId);
                         Log.d(TAG, "Connection set to ACTIVE from app answer/connect for connectionId: " + connectionId);
                     } catch (Exception e) {
                         Log.e(TAG, "Error setting connection to ACTIVE", e);
@@ -97,6 +101,18 @@ public class MyConnectionService extends ConnectionService {
         }
     }
 
+    /** Starts the ring timeout's deadline CALL_TIMEOUT_MS from now on the monotonic clock. */
+    @VisibleForTesting
+    static void armTimeoutDeadline() {
+        timeoutDeadline = CallClock.elapsedMillis() + CALL_TIMEOUT_MS;
+    }
+
+    /** Time left until the ring timeout is due; zero or negative once it has passed. */
+    @VisibleForTesting
+    static long getTimeoutRemainingMillis() {
+        return timeoutDeadline - CallClock.elapsedMillis();
+    }
+
     private static void startTimeout(final Connection connection, final ConnectionRequest request, final android.content.Context context) {
         cancelTimeout();
         
@@ -113,6 +129,7 @@ public class MyConnectionService extends ConnectionService {
         }
         
         timeoutConnectionId = connectionId;
+        armTimeoutDeadline();
         
         if (timeoutHandler == null) {
             timeoutHandler = new Handler(Looper.getMainLooper());
@@ -122,12 +139,20 @@ public class MyConnectionService extends ConnectionService {
             @Override
             public void run() {
                 try {
+                    // Handler delays follow uptime, not the plugin clock; re-arm until the deadline has really passed.
+                    long remaining = getTimeoutRemainingMillis();
+                    if (remaining > 0 && timeoutRunnable == this) {
+                        timeoutHandler.postDelayed(this, remaining);
+                        return;
+                    }
+                    
                     if (currentConnection == connection && connectionId.equals(timeoutConnectionId)) {
                         int currentState = connection.getState();
                         Log.d(TAG, "Timeout fired - current connection state: " + currentState + " (0=INITIALIZING, 1=NEW, 2=RINGING, 4=ACTIVE, 6=DISCONNECTED)");
                         
                         if (currentState != Connection.STATE_ACTIVE && currentState != Connection.STATE_DISCONNECTED) {
                             Log.d(TAG, "Call timeout reached (30s) - auto-rejecting call, connectionId: " + connectionId);
+                            FlightRecorder.record(FlightRecorder.Event.RING_TIMEOUT, connectionId);
                             
                             try {
                                 Intent serviceIntent = new Intent(context, VoipForegroundService.class);
@@ -147,7 +172,7 @@ public class MyConnectionService extends ConnectionService {
                             
                             CallConfig config = CallKitVoipPlugin.getCallConfig(connectionId);
                             if (config != null) {
-                                CallKitVoipPlugin.notifyRejectToBackend(context, config);
+                                CallKitVoipPlugin.notifyRejectToBackend(context, connectionId, config);
                             }
                             
                             CallKitVoipPlugin plugin = CallKitVoipPlugin.getInstance();
@@ -270,6 +295,10 @@ public class MyConnectionService extends ConnectionService {
                     String connectionId = request.getExtras().getString("connectionId");
                     
                     Log.d(TAG, "Call answered - connectionId: " + connectionId + ", requesting microphone at answer (late-invite)");
+                    CallRegistry.transition(connectionId, CallRegistry.CallState.ANSWERED);
+                    RejectEndpointPrewarmer.cancel(connectionId);
+                    CallQualityMonitor.trackStage(connectionId, CallQualityMonitor.Stage.ANSWER_TAPPED);
+                    FlightRecorder.record(FlightRecorder.Event.ANSWERED, connectionId);
                     
                     CallQualityMonitor.trackCallEnd(connectionId, "User answered");
                     
@@ -285,12 +314,13 @@ public class MyConnectionService extends ConnectionService {
                     String connectionId = request.getExtras().getString("connectionId");
                     
                     Log.d(TAG, "Call rejected - connectionId: " + connectionId);
+                    FlightRecorder.record(FlightRecorder.Event.REJECTED, connectionId);
                     
                     CallQualityMonitor.trackCallEnd(connectionId, "User rejected");
                     
                     CallConfig config = CallKitVoipPlugin.getCallConfig(connectionId);
                     if (config != null) {
-                        CallKitVoipPlugin.notifyRejectToBackend(getApplicationContext(), config);
+                        CallKitVoipPlugin.notifyRejectToBackend(getApplicationContext(), connectionId, config);
                     }
                     
                     CallKitVoipPlugin plugin = CallKitVoipPlugin.getInstance();
@@ -311,6 +341,7 @@ public class MyConnectionService extends ConnectionService {
                 @Override
                 public void onAbort() {
                     cancelTimeout();
+                    FlightRecorder.record(FlightRecorder.Event.ABORTED, request.getExtras().getString("connectionId"));
                     super.onAbort();
                     currentConnection = null;
                 }
@@ -321,6 +352,7 @@ public class MyConnectionService extends ConnectionService {
                     String connectionId = request.getExtras().getString("connectionId");
                     
                     Log.d(TAG, "Call disconnected - connectionId: " + connectionId);
+                    FlightRecorder.record(FlightRecorder.Event.DISCONNECTED, connectionId);
                     
                     CallQualityMonitor.trackCallEnd(connectionId, "User disconnected");
                     
@@ -377,6 +409,7 @@ public class MyConnectionService extends ConnectionService {
             Log.d(TAG, "Set video state: AUDIO_ONLY");
             
             currentConnection = connection;
+            FlightRecorder.record(FlightRecorder.Event.CONNECTION_CREATED, connectionId);
             Log.d(TAG, "Connection stored, system will handle INITIALIZING -> NEW transitions");
             
             Handler handler = new Handler(Looper.getMainLooper());
@@ -389,6 +422,9 @@ public class MyConnectionService extends ConnectionService {
                         
                         if (currentState == Connection.STATE_NEW || currentState == Connection.STATE_INITIALIZING) {
                             connection.setRinging();
+                            CallRegistry.transition(connectionId, CallRegistry.CallState.RINGING);
+                            CallQualityMonitor.trackStage(connectionId, CallQualityMonitor.Stage.RINGING);
+                            FlightRecorder.record(FlightRecorder.Event.RINGING, connectionId);
                             Log.d(TAG, "Set connection to RINGING state");
                             
                             int state = connection.getState();
@@ -423,6 +459,7 @@ public class MyConnectionService extends ConnectionService {
         String connectionId = null;
         if (request != null && request.getExtras() != null) {
             connectionId = request.getExtras().getString("connectionId");
+            FlightRecorder.record(FlightRecorder.Event.CONNECTION_FAILED, connectionId);
             if (connectionId != null) {
                 CallQualityMonitor.trackCallFailure(connectionId, "Connection creation failed - PhoneAccount may be disabled");
             }
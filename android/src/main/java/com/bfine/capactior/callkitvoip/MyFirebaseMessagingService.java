@@ -18,7 +18,6 @@ import com.google.firebase.messaging.RemoteMessage;
 
 import androidx.annotation.RequiresApi;
 
-import java.util.Map;
 import java.util.UUID;
 
 @SuppressLint("MissingFirebaseInstanceTokenRefresh")
@@ -77,8 +76,10 @@ public class MyFirebaseMessagingService extends FirebaseMessagingService {
             );
             
             CallKitVoipPlugin.storeCallConfig(connectionId, config);
+            FlightRecorder.record(FlightRecorder.Event.PUSH_RECEIVED, connectionId);
             CallStateManager.saveCallState(getApplicationContext(), connectionId, config);
             CallQualityMonitor.trackCallStart(connectionId);
+            RejectEndpointPrewarmer.prewarm(getApplicationContext(), connectionId);
             
             String displayName = config.getDisplayName();
             
@@ -87,6 +88,7 @@ public class MyFirebaseMessagingService extends FirebaseMessagingService {
                     showNativeIncomingCall(connectionId, displayName);
                 } else {
                     Log.w(TAG, "PhoneAccount not enabled, using notification fallback");
+                    FlightRecorder.record(FlightRecorder.Event.NOTIFICATION_FALLBACK, connectionId);
                     CallKitVoipPlugin plugin = CallKitVoipPlugin.getInstance();
                     if (plugin != null) {
                         plugin.notifyError(CallKitError.PHONE_ACCOUNT_DISABLED, 
@@ -105,6 +107,9 @@ public class MyFirebaseMessagingService extends FirebaseMessagingService {
                 endCall();
             }
         }
+
+        // FCM may stop the process as soon as this returns, so wait for pending writes.
+        PersistenceExecutor.flush();
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
@@ -141,11 +146,14 @@ public class MyFirebaseMessagingService extends FirebaseMessagingService {
 
             Log.d(TAG, "Calling addNewIncomingCall with connectionId: " + connectionId + ", displayName: " + displayName + ", addressUri: " + addressUri);
             telecomManager.addNewIncomingCall(phoneAccountHandle, extras);
+            CallQualityMonitor.trackStage(connectionId, CallQualityMonitor.Stage.INCOMING_CALL_ADDED);
+            FlightRecorder.record(FlightRecorder.Event.INCOMING_CALL_ADDED, connectionId);
             
             Log.d(TAG, "Incoming call shown: " + displayName);
             
         } catch (SecurityException e) {
             Log.e(TAG, "SecurityException: Falling back to notification UI. Error: " + e.getMessage());
+            FlightRecorder.record(FlightRecorder.Event.NOTIFICATION_FALLBACK, connectionId);
             CallQualityMonitor.trackCallFailure(connectionId, "SecurityException: " + e.getMessage());
             CallKitVoipPlugin plugin = CallKitVoipPlugin.getInstance();
             if (plugin != null) {
@@ -219,9 +227,10 @@ public class MyFirebaseMessagingService extends FirebaseMessagingService {
         
         CallKitVoipPlugin plugin = CallKitVoipPlugin.getInstance();
         if (plugin != null) {
-            Map<String, CallConfig> allConfigs = CallKitVoipPlugin.getAllCallConfigs();
-            for (String connectionId : allConfigs.keySet()) {
+            for (CallRegistry.Entry call : CallRegistry.getAll()) {
+                String connectionId = call.connectionId;
                 CallQualityMonitor.trackCallEnd(connectionId, "Call cancelled");
+                FlightRecorder.record(FlightRecorder.Event.PUSH_CANCELLED, connectionId);
                 plugin.notifyEvent("callCancelled", connectionId);
                 CallKitVoipPlugin.removeCallConfig(connectionId);
                 CallStateManager.clearCallState(getApplicationContext(), connectionId);
@@ -0,0 +1,154 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single background thread that performs every disk write for the plugin's stores, so Telecom and FCM
+ * callbacks never block on I/O. Unkeyed writes run in submission order. Keyed writes wait a short
+ * window and only the latest write per key runs, so bursts of updates to one record hit disk once.
+ */
+public final class PersistenceExecutor {
+    private static final String TAG = "PersistenceExecutor";
+    static final long COALESCE_WINDOW_MS = 50;
+    public static final long DEFAULT_FLUSH_TIMEOUT_MS = 1000;
+
+    private static volatile Thread persistenceThread = null;
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "CallKitVoip-Persistence");
+        thread.setDaemon(true);
+        persistenceThread = thread;
+        return thread;
+    });
+
+    private static final Map<String, Runnable> pendingByKey = new ConcurrentHashMap<>();
+    private static final AtomicInteger queueDepth = new AtomicInteger();
+    private static final AtomicLong completedWrites = new AtomicLong();
+    private static final AtomicLong coalescedWrites = new AtomicLong();
+    private static final AtomicLong failedWrites = new AtomicLong();
+    private static final AtomicLong totalWriteNanos = new AtomicLong();
+    private static final AtomicLong maxWriteNanos = new AtomicLong();
+
+    private PersistenceExecutor() {
+    }
+
+    /** Queues a write that must run, in order relative to other unkeyed writes. */
+    public static void execute(Runnable write) {
+        queueDepth.incrementAndGet();
+        executor.execute(() -> {
+            queueDepth.decrementAndGet();
+            runWrite(write);
+        });
+    }
+
+    /**
+     * Queues a write for key. If a write for the same key is still pending it is replaced, so the
+     * write should persist the current state of the record rather than a delta.
+     */
+    public static void submit(String key, Runnable write) {
+        queueDepth.incrementAndGet();
+        if (pendingByKey.put(key, write) != null) {
+            queueDepth.decrementAndGet();
+            coalescedWrites.incrementAndGet();
+            return;
+        }
+        executor.schedule(() -> {
+            Runnable latest = pendingByKey.remove(key);
+            if (latest != null) {
+                queueDepth.decrementAndGet();
+                runWrite(latest);
+            }
+        }, COALESCE_WINDOW_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static boolean flush() {
+        return flush(DEFAULT_FLUSH_TIMEOUT_MS);
+    }
+
+    /**
+     * Blocks until every write submitted before this call has reached disk, including keyed writes
+     * still inside their coalescing window. Call before the process may be killed, e.g. at the end of
+     * an FCM or broadcast callback. Returns false if the timeout elapsed first.
+     */
+    public static boolean flush(long timeoutMs) {
+        if (Thread.currentThread() == persistenceThread) {
+            drainPendingWrites();
+            return true;
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(() -> {
+            drainPendingWrites();
+            done.countDown();
+        });
+        try {
+            if (done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            Log.w(TAG, "Flush timed out after " + timeoutMs + "ms with " + queueDepth.get() + " writes queued");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Non-blocking variant of {@link #flush()} for the main thread: runs onFlushed on the persistence
+     * thread once every earlier write has reached disk. Pair with BroadcastReceiver.goAsync().
+     */
+    public static void flushAsync(Runnable onFlushed) {
+        executor.execute(() -> {
+            drainPendingWrites();
+            onFlushed.run();
+        });
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        long completed = completedWrites.get();
+        stats.put("queueDepth", queueDepth.get());
+        stats.put("completedWrites", completed);
+        stats.put("coalescedWrites", coalescedWrites.get());
+        stats.put("failedWrites", failedWrites.get());
+        stats.put("averageWriteLatencyMs", completed > 0 ? totalWriteNanos.get() / (double) completed / 1_000_000.0 : 0.0);
+        stats.put("maxWriteLatencyMs", maxWriteNanos.get() / 1_000_000.0);
+        return stats;
+    }
+
+    private static void drainPendingWrites() {
+        for (String key : pendingByKey.keySet()) {
+            Runnable write = pendingByKey.remove(key);
+            if (write != null) {
+                queueDepth.decrementAndGet();
+                runWrite(write);
+            }
+        }
+    }
+
+    private static void runWrite(Runnable write) {
+        long start = CallClock.elapsedNanos();
+        try {
+            write.run();
+        } catch (RuntimeException e) {
+            failedWrites.incrementAndGet();
+            Log.e(TAG, "Persistence write failed", e);
+        }
+
+        long elapsed = CallClock.elapsedNanos() - start;
+        completedWrites.incrementAndGet();
+        totalWriteNanos.addAndGet(elapsed);
+        long max = maxWriteNanos.get();
+        while (elapsed > max && !maxWriteNanos.compareAndSet(max, elapsed)) {
+            max = maxWriteNanos.get();
+        }
+    }
+}
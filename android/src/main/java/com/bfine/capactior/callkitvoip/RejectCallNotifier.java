@@ -0,0 +1,216 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sends reject notifications to the backend through a {@link CircuitBreaker} per base URL. While a
+ * backend's circuit is open, rejects are parked in memory instead of each holding a socket and a
+ * thread for the full timeout; they are sent once the circuit lets a trial request through, oldest
+ * first.
+ * <p>
+ * Every finished request is reported to {@link RejectOutbox}, which owns durability and retries.
+ */
+public class RejectCallNotifier {
+    private static final String TAG = "RejectCallNotifier";
+    /** Parked rejects kept per backend; beyond this the oldest is dropped. */
+    static final int MAX_PARKED = 50;
+    /** Retry delay when a half-open circuit is busy with another trial request. */
+    static final long TRIAL_BUSY_DELAY_MS = 1000;
+    public static final String IDEMPOTENCY_HEADER = "Idempotency-Key";
+
+    public enum Result {
+        /** 2xx: the backend has the reject. */
+        DELIVERED,
+        /** Any other 4xx: the backend answered and will not accept this request, so retrying is pointless. */
+        REJECTED,
+        /** 5xx, 408, 429, a network error, or dropped while parked: worth retrying later. */
+        FAILED
+    }
+
+    public static class Request {
+        /** Sent as {@link #IDEMPOTENCY_HEADER} so the backend can ignore repeats of the same reject. */
+        final String idempotencyKey;
+        final String baseUrl;
+        final String url;
+        final Map<String, String> headers;
+
+        /** headers is kept, not copied; it must not change afterwards. */
+        public Request(String idempotencyKey, String baseUrl, String url, Map<String, String> headers) {
+            this.idempotencyKey = idempotencyKey;
+            this.baseUrl = baseUrl;
+            this.url = url;
+            this.headers = headers;
+        }
+    }
+
+    /** Guarded by itself, as is drainScheduled. */
+    private static final Map<String, ArrayDeque<Request>> parked = new HashMap<>();
+    private static final Set<String> drainScheduled = new HashSet<>();
+    private static long droppedParked = 0;
+
+    private RejectCallNotifier() {
+    }
+
+    /** Sends request on {@link BackendExecutor}, or parks it if the backend's circuit is open. */
+    public static void send(Request request) {
+        if (!BackendExecutor.execute(() -> sendNow(request))) {
+            RejectOutbox.onResult(request, Result.FAILED);
+        }
+    }
+
+    private static void sendNow(Request request) {
+        CircuitBreaker breaker = CircuitBreaker.forKey(request.baseUrl);
+        if (!breaker.tryAcquire()) {
+            park(request, breaker);
+            return;
+        }
+        RejectOutbox.onResult(request, execute(request, breaker));
+    }
+
+    /** Performs the request on the calling thread and reports the outcome to breaker. */
+    static Result execute(Request request, CircuitBreaker breaker) {
+        long start = CallClock.elapsedMillis();
+        Result result = Result.FAILED;
+        try {
+            Map<String, String> headers = new HashMap<>(request.headers);
+            headers.put(IDEMPOTENCY_HEADER, request.idempotencyKey);
+            BackendHttpClient.Response response = BackendHttpClient.send("DELETE", request.url, headers);
+            int code = response.code;
+            RejectEndpointPrewarmer.markWarm(request.baseUrl);
+            CallQualityMonitor.trackRejectSend(response.reusedConnection, CallClock.elapsedMillis() - start);
+            if (code >= 200 && code < 300) {
+                Log.d(TAG, "Reject reported to backend");
+                result = Result.DELIVERED;
+            } else {
+                Log.w(TAG, "Reject API returned " + code);
+                if (code < 500 && code != 408 && code != 429) {
+                    result = Result.REJECTED;
+                }
+            }
+        } catch (Exception e) {
+            RejectEndpointPrewarmer.markCold(request.baseUrl);
+            Log.e(TAG, "Reject API request failed", e);
+        }
+        // Client errors mean the backend is up and answering; only server-side trouble trips the circuit.
+        breaker.onResult(result != Result.FAILED, CallClock.elapsedMillis() - start);
+        return result;
+    }
+
+    private static void park(Request request, CircuitBreaker breaker) {
+        Request dropped = null;
+        synchronized (parked) {
+            ArrayDeque<Request> queue = parked.get(request.baseUrl);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                parked.put(request.baseUrl, queue);
+            }
+            if (queue.size() >= MAX_PARKED) {
+                dropped = queue.pollFirst();
+                droppedParked++;
+                Log.w(TAG, "Parked reject queue full for " + request.baseUrl + ", dropped oldest");
+            }
+            queue.addLast(request);
+            Log.d(TAG, "Circuit open for " + request.baseUrl + ", parked reject (" + queue.size() + " waiting)");
+            scheduleDrain(request.baseUrl, breaker.getRemainingOpenMillis());
+        }
+        if (dropped != null) {
+            RejectOutbox.onResult(dropped, Result.FAILED);
+        }
+    }
+
+    private static void scheduleDrain(String baseUrl, long delayMs) {
+        synchronized (parked) {
+            if (!drainScheduled.add(baseUrl)) {
+                return;
+            }
+        }
+        BackendExecutor.schedule(() -> {
+            if (!BackendExecutor.execute(() -> drain(baseUrl))) {
+                synchronized (parked) {
+                    drainScheduled.remove(baseUrl);
+                }
+                scheduleDrain(baseUrl, TRIAL_BUSY_DELAY_MS);
+            }
+        }, delayMs);
+    }
+
+    /** Sends parked rejects one at a time, stopping and rescheduling as soon as the circuit refuses. */
+    private static void drain(String baseUrl) {
+        synchronized (parked) {
+            drainScheduled.remove(baseUrl);
+        }
+        CircuitBreaker breaker = CircuitBreaker.forKey(baseUrl);
+
+        while (true) {
+            Request request;
+            synchronized (parked) {
+                ArrayDeque<Request> queue = parked.get(baseUrl);
+                if (queue == null || queue.isEmpty()) {
+                    parked.remove(baseUrl);
+                    return;
+                }
+                if (!breaker.tryAcquire()) {
+                    long remaining = breaker.getRemainingOpenMillis();
+                    scheduleDrain(baseUrl, remaining > 0 ? remaining : TRIAL_BUSY_DELAY_MS);
+                    return;
+                }
+                request = queue.pollFirst();
+            }
+            Result result = execute(request, breaker);
+            if (result != Result.FAILED) {
+                RejectOutbox.onResult(request, result);
+                continue;
+            }
+
+            // Keep the reject at the head and back off; a failed trial has reopened the circuit.
+            boolean requeued = false;
+            synchronized (parked) {
+                ArrayDeque<Request> queue = parked.get(baseUrl);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    parked.put(baseUrl, queue);
+                }
+                if (queue.size() < MAX_PARKED) {
+                    queue.addFirst(request);
+                    requeued = true;
+                } else {
+                    droppedParked++;
+                }
+            }
+            if (!requeued) {
+                RejectOutbox.onResult(request, Result.FAILED);
+            }
+            long remaining = breaker.getRemainingOpenMillis();
+            scheduleDrain(baseUrl, Math.max(remaining, TRIAL_BUSY_DELAY_MS));
+            return;
+        }
+    }
+
+    /** Circuit breaker snapshot per backend base URL. */
+    public static Map<String, Map<String, Object>> getBackendStats() {
+        Map<String, Map<String, Object>> backends = new HashMap<>();
+        for (Map.Entry<String, CircuitBreaker> breaker : CircuitBreaker.getAll().entrySet()) {
+            backends.put(breaker.getKey(), breaker.getValue().getSnapshot());
+        }
+        return backends;
+    }
+
+    public static Map<String, Object> getParkedStats() {
+        Map<String, Object> stats = new HashMap<>();
+        int parkedCount = 0;
+        synchronized (parked) {
+            for (ArrayDeque<Request> queue : parked.values()) {
+                parkedCount += queue.size();
+            }
+            stats.put("droppedParkedRejects", droppedParked);
+        }
+        stats.put("parkedRejects", parkedCount);
+        return stats;
+    }
+}
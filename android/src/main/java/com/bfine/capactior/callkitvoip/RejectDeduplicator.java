@@ -0,0 +1,89 @@
+package com.bfine.capactior.callkitvoip;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Makes sure one call produces one backend reject. The Telecom reject, the ring timeout and the
+ * notification's reject action can all fire for the same call; the first one claims the call's
+ * connectionId and channel_id and later ones are dropped as duplicates. A claim lasts while its
+ * reject is in the outbox and for COMPLETED_TTL_MS after the outbox is done with it.
+ */
+public final class RejectDeduplicator {
+    static final long COMPLETED_TTL_MS = 10 * 60 * 1000L;
+
+    private static final class Claim {
+        final String idempotencyKey;
+        /** {@link CallClock#elapsedMillis()} when the outbox finished with the reject, or -1 while in flight. */
+        long completedAt = -1;
+
+        Claim(String idempotencyKey) {
+            this.idempotencyKey = idempotencyKey;
+        }
+    }
+
+    /** Claims by "connection:" + connectionId and "channel:" + channel_id; both keys of a call share one Claim. */
+    private static final Map<String, Claim> claims = new HashMap<>();
+    private static long duplicateCount = 0;
+
+    private RejectDeduplicator() {
+    }
+
+    /**
+     * Claims the call for the reject with idempotencyKey. Returns false if a reject for the same
+     * connectionId or channel_id is in flight or completed recently. A call with neither cannot be
+     * matched and is always allowed.
+     */
+    public static boolean tryClaim(String connectionId, String channelId, String idempotencyKey) {
+        String connectionKey = connectionId != null && !connectionId.isEmpty() ? "connection:" + connectionId : null;
+        String channelKey = channelId != null && !channelId.isEmpty() ? "channel:" + channelId : null;
+        long now = CallClock.elapsedMillis();
+
+        synchronized (claims) {
+            pruneExpired(now);
+            if ((connectionKey != null && claims.containsKey(connectionKey))
+                || (channelKey != null && claims.containsKey(channelKey))) {
+                duplicateCount++;
+                return false;
+            }
+
+            Claim claim = new Claim(idempotencyKey);
+            if (connectionKey != null) {
+                claims.put(connectionKey, claim);
+            }
+            if (channelKey != null) {
+                claims.put(channelKey, claim);
+            }
+            return true;
+        }
+    }
+
+    /** Starts the TTL of the claim held by the reject with idempotencyKey. */
+    static void complete(String idempotencyKey) {
+        long now = CallClock.elapsedMillis();
+        synchronized (claims) {
+            for (Claim claim : claims.values()) {
+                if (claim.completedAt < 0 && claim.idempotencyKey.equals(idempotencyKey)) {
+                    claim.completedAt = now;
+                }
+            }
+        }
+    }
+
+    private static void pruneExpired(long now) {
+        Iterator<Claim> it = claims.values().iterator();
+        while (it.hasNext()) {
+            Claim claim = it.next();
+            if (claim.completedAt >= 0 && now - claim.completedAt > COMPLETED_TTL_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    public static long getDuplicateCount() {
+        synchronized (claims) {
+            return duplicateCount;
+        }
+    }
+}
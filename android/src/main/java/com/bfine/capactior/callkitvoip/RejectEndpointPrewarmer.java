@@ -0,0 +1,116 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opens a connection to the reject backend as soon as an incoming call push arrives, so the DELETE
+ * sent when the user rejects (or the call times out) finds DNS resolved and a TLS session already in
+ * {@link BackendHttpClient}'s keep-alive pool instead of paying for them after the tap. The warm-up
+ * is a HEAD to the reject endpoint's origin with the configured headers, so it reaches the same
+ * server as the DELETE and is not turned away for missing credentials. Warm-ups are best effort:
+ * they are skipped while the backend was used recently or its circuit is open, and a warm-up that
+ * has not started yet is cancelled when its call is answered or ends.
+ */
+public final class RejectEndpointPrewarmer {
+    private static final String TAG = "RejectEndpointPrewarmer";
+    /**
+     * How long after a completed exchange a new warm-up is not worth sending. The platform keeps idle
+     * connections for up to five minutes; servers often close them sooner. Whether a reject really
+     * found a pooled connection is reported by {@link BackendHttpClient.Response#reusedConnection}.
+     */
+    static final long WARM_TTL_MS = 60_000;
+
+    private static final class Warmup implements Runnable {
+        final String connectionId;
+        final String baseUrl;
+        final String originUrl;
+        final Map<String, String> headers;
+        volatile boolean cancelled;
+
+        Warmup(String connectionId, RejectRequestTemplate template) {
+            this.connectionId = connectionId;
+            this.baseUrl = template.baseUrl;
+            this.originUrl = template.originUrl;
+            this.headers = template.getHeaders();
+        }
+
+        @Override
+        public void run() {
+            pending.remove(connectionId, this);
+            try {
+                if (cancelled || isWarm(baseUrl, CallClock.elapsedMillis())
+                    || CircuitBreaker.forKey(baseUrl).getState() == CircuitBreaker.State.OPEN) {
+                    return;
+                }
+                long start = CallClock.elapsedMillis();
+                BackendHttpClient.Response response = BackendHttpClient.send("HEAD", originUrl, headers);
+                markWarm(baseUrl);
+                Log.d(TAG, "Warmed " + originUrl + " in " + (CallClock.elapsedMillis() - start) + "ms (HTTP " + response.code + ")");
+            } catch (IOException e) {
+                Log.d(TAG, "Warm-up of " + originUrl + " failed: " + e.getMessage());
+            } finally {
+                warming.remove(baseUrl);
+            }
+        }
+    }
+
+    /** Not-yet-started warm-ups by connectionId. */
+    private static final ConcurrentHashMap<String, Warmup> pending = new ConcurrentHashMap<>();
+    /** Base URLs with a warm-up queued or running, so a burst of pushes opens one connection. */
+    private static final ConcurrentHashMap<String, Boolean> warming = new ConcurrentHashMap<>();
+    /** {@link CallClock#elapsedMillis()} of the last completed exchange per base URL. */
+    private static final ConcurrentHashMap<String, Long> lastExchangeAt = new ConcurrentHashMap<>();
+
+    private RejectEndpointPrewarmer() {
+    }
+
+    /** Starts a warm-up of the configured reject backend for the call, if one is worthwhile. */
+    public static void prewarm(Context context, String connectionId) {
+        RejectRequestTemplate template = CallKitVoipPlugin.getRejectTemplate(context);
+        if (template == null || connectionId == null || isWarm(template.baseUrl, CallClock.elapsedMillis())) {
+            return;
+        }
+        String baseUrl = template.baseUrl;
+        if (warming.putIfAbsent(baseUrl, Boolean.TRUE) != null) {
+            return;
+        }
+
+        Warmup warmup = new Warmup(connectionId, template);
+        pending.put(connectionId, warmup);
+        if (!BackendExecutor.execute(warmup)) {
+            pending.remove(connectionId, warmup);
+            warming.remove(baseUrl);
+        }
+    }
+
+    /** Drops the call's warm-up if it has not started; one already in progress is left to finish. */
+    public static void cancel(String connectionId) {
+        if (connectionId == null) {
+            return;
+        }
+        Warmup warmup = pending.remove(connectionId);
+        if (warmup != null) {
+            warmup.cancelled = true;
+        }
+    }
+
+    /** Whether baseUrl had a completed exchange recently enough that a warm-up at elapsedMillis is skipped. */
+    static boolean isWarm(String baseUrl, long elapsedMillis) {
+        Long last = lastExchangeAt.get(baseUrl);
+        return last != null && elapsedMillis - last <= WARM_TTL_MS;
+    }
+
+    static void markWarm(String baseUrl) {
+        lastExchangeAt.put(baseUrl, CallClock.elapsedMillis());
+    }
+
+    /** After a network error the pooled connection is probably gone. */
+    static void markCold(String baseUrl) {
+        lastExchangeAt.remove(baseUrl);
+    }
+}
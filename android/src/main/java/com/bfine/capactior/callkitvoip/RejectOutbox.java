@@ -0,0 +1,340 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable outbox for backend reject notifications. Each reject is written to its own file in
+ * {@code files/callkit_reject_outbox} while its first send is under way and deleted only once the
+ * backend has answered it, so a reject survives the process being killed or the device being
+ * offline. Failed sends are retried with full-jitter backoff, and immediately when the network comes
+ * back, when the app starts and after boot. Every retry reuses the reject's idempotency key so the
+ * backend can ignore duplicates.
+ * <p>
+ * Only the idempotency key and channel id are stored. The URL and headers, which carry the auth
+ * token, are rebuilt from the current reject config for every send, so no secret is written to the
+ * outbox and a changed config applies to pending retries.
+ */
+public class RejectOutbox {
+    private static final String TAG = "RejectOutbox";
+    private static final String OUTBOX_DIR = "callkit_reject_outbox";
+    private static final String ENTRY_FILE_PREFIX = "reject_";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String WRITE_KEY_PREFIX = "rejectOutbox:";
+
+    static final int MAX_ATTEMPTS = 10;
+    /** Rejects older than this are dropped; the call they refer to is long over. */
+    static final long MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+    static final long RETRY_BASE_DELAY_MS = 2000;
+    static final long RETRY_MAX_DELAY_MS = 5 * 60 * 1000L;
+
+    static class Entry {
+        final String idempotencyKey;
+        final String channelId;
+        /**
+         * Wall-clock time the reject was first queued, guarded by the entry. Persisted, so unlike the
+         * call-path deadlines it cannot use {@link CallClock#elapsedMillis()}, which restarts at boot.
+         */
+        long createdAt;
+        int attempts;
+        boolean inFlight;
+        ScheduledFuture<?> retry;
+
+        Entry(String idempotencyKey, String channelId, long createdAt, int attempts) {
+            this.idempotencyKey = idempotencyKey;
+            this.channelId = channelId != null ? channelId : "";
+            this.createdAt = createdAt;
+            this.attempts = attempts;
+        }
+    }
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static volatile boolean restored = false;
+    private static volatile File outboxDir = null;
+    /** Application context kept to read the reject config when a retry fires. */
+    private static volatile Context appContext = null;
+    private static final AtomicBoolean networkCallbackRegistered = new AtomicBoolean();
+
+    private static final AtomicLong deliveredCount = new AtomicLong();
+    private static final AtomicLong retriedCount = new AtomicLong();
+    private static final AtomicLong abandonedCount = new AtomicLong();
+
+    private RejectOutbox() {
+    }
+
+    public static String newIdempotencyKey() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Queues the write of the reject to disk, then hands request to {@link BackendExecutor} without
+     * waiting for that write. request must have been built from the current config for channelId.
+     */
+    public static void enqueue(Context context, String channelId, RejectCallNotifier.Request request) {
+        ensureRestored(context);
+        registerNetworkCallback(context);
+
+        final String key = request.idempotencyKey;
+        final Entry entry = new Entry(key, channelId, CallClock.wallMillis(), 0);
+        entry.inFlight = true;
+        entries.put(key, entry);
+        final File dir = outboxDir;
+        PersistenceExecutor.execute(() -> persistEntry(dir, key));
+        RejectCallNotifier.send(request);
+    }
+
+    /** Sends every stored reject that is not already in flight now, skipping any remaining backoff. */
+    public static void retryPending(Context context) {
+        ensureRestored(context);
+        if (entries.isEmpty()) {
+            return;
+        }
+        registerNetworkCallback(context);
+        Log.d(TAG, "Retrying " + entries.size() + " pending reject(s)");
+        for (Entry entry : entries.values()) {
+            dispatch(entry);
+        }
+    }
+
+    private static void dispatch(Entry entry) {
+        RejectRequestTemplate template = CallKitVoipPlugin.getRejectTemplate(appContext);
+        synchronized (entry) {
+            if (entry.inFlight || entries.get(entry.idempotencyKey) != entry) {
+                return;
+            }
+            if (template == null) {
+                Log.w(TAG, "Reject API no longer configured, dropping reject " + entry.idempotencyKey);
+                abandonedCount.incrementAndGet();
+                remove(entry.idempotencyKey);
+                return;
+            }
+            entry.inFlight = true;
+            if (entry.retry != null) {
+                entry.retry.cancel(false);
+                entry.retry = null;
+            }
+        }
+        retriedCount.incrementAndGet();
+        RejectCallNotifier.send(template.newRequest(entry.channelId, entry.idempotencyKey));
+    }
+
+    /** Called by {@link RejectCallNotifier} when a send for request has finished. */
+    static void onResult(RejectCallNotifier.Request request, RejectCallNotifier.Result result) {
+        String key = request.idempotencyKey;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+
+        long delay = -1;
+        synchronized (entry) {
+            entry.inFlight = false;
+            if (result == RejectCallNotifier.Result.DELIVERED) {
+                deliveredCount.incrementAndGet();
+                remove(key);
+                return;
+            }
+            if (result == RejectCallNotifier.Result.REJECTED) {
+                Log.w(TAG, "Backend refused reject " + key + ", dropping it");
+                abandonedCount.incrementAndGet();
+                remove(key);
+                return;
+            }
+
+            entry.attempts++;
+            // Wall-clock age on purpose: createdAt has to keep its meaning across reboots. A clock set
+            // back would make the age negative and keep the reject alive indefinitely, so count the
+            // age from now instead.
+            long now = CallClock.wallMillis();
+            if (now < entry.createdAt) {
+                entry.createdAt = now;
+            }
+            if (entry.attempts >= MAX_ATTEMPTS || now - entry.createdAt > MAX_AGE_MS) {
+                Log.w(TAG, "Giving up on reject " + key + " after " + entry.attempts + " attempt(s)");
+                abandonedCount.incrementAndGet();
+                remove(key);
+                return;
+            }
+            delay = backoffDelay(entry.attempts);
+            entry.retry = BackendExecutor.schedule(() -> dispatch(entry), delay);
+        }
+        schedulePersist(key);
+        Log.d(TAG, "Reject " + key + " failed, attempt " + entry.attempts + ", retrying in " + delay + "ms");
+    }
+
+    /** Full jitter: uniformly random between 0 and the capped exponential delay. */
+    static long backoffDelay(int attempts) {
+        int shift = Math.min(attempts - 1, 30);
+        long cap = Math.min(RETRY_MAX_DELAY_MS, RETRY_BASE_DELAY_MS << shift);
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    private static void remove(String key) {
+        entries.remove(key);
+        RejectDeduplicator.complete(key);
+        schedulePersist(key);
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("pendingRejects", entries.size());
+        stats.put("deliveredRejects", deliveredCount.get());
+        stats.put("retriedRejects", retriedCount.get());
+        stats.put("abandonedRejects", abandonedCount.get());
+        return stats;
+    }
+
+    private static void registerNetworkCallback(Context context) {
+        if (!networkCallbackRegistered.compareAndSet(false, true)) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        try {
+            ConnectivityManager connectivityManager = (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+            connectivityManager.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    if (!entries.isEmpty()) {
+                        retryPending(appContext);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Could not watch for network changes, rejects will retry on backoff only", e);
+        }
+    }
+
+    private static void ensureRestored(Context context) {
+        if (restored) {
+            return;
+        }
+        synchronized (entries) {
+            if (!restored) {
+                appContext = context.getApplicationContext();
+                outboxDir = getOutboxDir(context);
+                readEntries(outboxDir);
+                restored = true;
+            }
+        }
+    }
+
+    private static void schedulePersist(final String key) {
+        final File dir = outboxDir;
+        PersistenceExecutor.submit(WRITE_KEY_PREFIX + key, () -> persistEntry(dir, key));
+    }
+
+    /** Writes whatever the in-memory map holds for key, so a coalesced write is never stale. */
+    private static void persistEntry(File outboxDir, String key) {
+        Entry entry = entries.get(key);
+        File target = new File(outboxDir, ENTRY_FILE_PREFIX + key);
+        try {
+            if (entry == null) {
+                target.delete();
+                return;
+            }
+            JSONObject json;
+            synchronized (entry) {
+                json = toJson(entry);
+            }
+            File temp = File.createTempFile(target.getName(), TEMP_FILE_SUFFIX, outboxDir);
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (!temp.renameTo(target)) {
+                temp.delete();
+                throw new IOException("Could not move reject into place: " + key);
+            }
+        } catch (JSONException | IOException e) {
+            Log.e(TAG, "Error persisting reject " + key, e);
+        }
+    }
+
+    private static void readEntries(File outboxDir) {
+        File[] files = outboxDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(ENTRY_FILE_PREFIX) || name.endsWith(TEMP_FILE_SUFFIX)) {
+                if (name.endsWith(TEMP_FILE_SUFFIX)) {
+                    file.delete();
+                }
+                continue;
+            }
+
+            try {
+                Entry entry = parseEntry(new JSONObject(readFile(file)));
+                entries.put(entry.idempotencyKey, entry);
+            } catch (JSONException | IOException e) {
+                Log.e(TAG, "Dropping unreadable reject " + name, e);
+                file.delete();
+            }
+        }
+
+        if (!entries.isEmpty()) {
+            Log.d(TAG, "Restored " + entries.size() + " pending reject(s) from disk");
+        }
+    }
+
+    private static JSONObject toJson(Entry entry) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("idempotencyKey", entry.idempotencyKey);
+        json.put("channelId", entry.channelId);
+        json.put("createdAt", entry.createdAt);
+        json.put("attempts", entry.attempts);
+        return json;
+    }
+
+    private static Entry parseEntry(JSONObject json) throws JSONException {
+        return new Entry(json.getString("idempotencyKey"), json.getString("channelId"), json.getLong("createdAt"),
+            json.optInt("attempts", 0));
+    }
+
+    private static File getOutboxDir(Context context) {
+        File dir = new File(context.getFilesDir(), OUTBOX_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Could not create reject outbox directory " + dir);
+        }
+        return dir;
+    }
+
+    private static String readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reject-call backend config compiled once when it is set: the base URL is normalized, the path is
+ * split around its {channel_id} slots and the headers are built, so preparing a reject only
+ * encodes the channel id and joins the pieces. Instances are immutable and safe to share.
+ */
+public final class RejectRequestTemplate {
+    private static final String TAG = "RejectRequestTemplate";
+    static final String CHANNEL_ID_SLOT = "{channel_id}";
+
+    public final String baseUrl;
+    /** Scheme, host and port of the reject endpoint, with a "/" path: the part the connection pool keys on. */
+    public final String originUrl;
+    /** Literal path pieces; a URL-encoded channel id goes between each consecutive pair. */
+    private final String[] pathParts;
+    private final int literalLength;
+    private final Map<String, String> headers;
+
+    private RejectRequestTemplate(String baseUrl, String[] pathParts, Map<String, String> headers) {
+        this.baseUrl = baseUrl;
+        this.originUrl = origin(baseUrl);
+        this.pathParts = pathParts;
+        this.headers = headers;
+        int length = baseUrl.length();
+        for (String part : pathParts) {
+            length += part.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Returns null if baseUrl is blank. path may be null for the default; headersJson may be null
+     * or invalid, in which case only the Authorization header is sent.
+     */
+    public static RejectRequestTemplate compile(String baseUrl, String path, String authToken, String headersJson) {
+        if (baseUrl == null || baseUrl.trim().isEmpty()) {
+            return null;
+        }
+        String base = baseUrl.trim();
+        while (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+        if (path == null || path.isEmpty()) {
+            path = CallKitVoipPlugin.DEFAULT_PATH;
+        }
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (authToken != null && !authToken.isEmpty()) {
+            headers.put("Authorization", "Bearer " + authToken);
+        }
+        if (headersJson != null && !headersJson.isEmpty()) {
+            try {
+                JSONObject extraHeaders = new JSONObject(headersJson);
+                Iterator<String> names = extraHeaders.keys();
+                while (names.hasNext()) {
+                    String name = names.next();
+                    headers.put(name, extraHeaders.optString(name, ""));
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Ignoring invalid reject headers", e);
+            }
+        }
+
+        return new RejectRequestTemplate(base, splitPath(path), Collections.unmodifiableMap(headers));
+    }
+
+    private static String[] splitPath(String path) {
+        int slots = 0;
+        for (int i = path.indexOf(CHANNEL_ID_SLOT); i >= 0; i = path.indexOf(CHANNEL_ID_SLOT, i + CHANNEL_ID_SLOT.length())) {
+            slots++;
+        }
+        String[] parts = new String[slots + 1];
+        int start = 0;
+        for (int i = 0; i < slots; i++) {
+            int slot = path.indexOf(CHANNEL_ID_SLOT, start);
+            parts[i] = path.substring(start, slot);
+            start = slot + CHANNEL_ID_SLOT.length();
+        }
+        parts[slots] = path.substring(start);
+        return parts;
+    }
+
+    private static String origin(String baseUrl) {
+        try {
+            URL url = new URL(baseUrl);
+            return url.getProtocol() + "://" + url.getAuthority() + "/";
+        } catch (MalformedURLException e) {
+            return baseUrl + "/";
+        }
+    }
+
+    /** Authorization and the configured extra headers, without a per-request idempotency key. */
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public String buildUrl(String channelId) {
+        String encoded = encode(channelId != null ? channelId : "");
+        StringBuilder url = new StringBuilder(literalLength + encoded.length() * (pathParts.length - 1));
+        url.append(baseUrl).append(pathParts[0]);
+        for (int i = 1; i < pathParts.length; i++) {
+            url.append(encoded).append(pathParts[i]);
+        }
+        return url.toString();
+    }
+
+    /** A new reject request for channelId, with its own idempotency key and the shared headers. */
+    public RejectCallNotifier.Request newRequest(String channelId) {
+        return newRequest(channelId, RejectOutbox.newIdempotencyKey());
+    }
+
+    /** The request for an earlier reject, rebuilt with this config and its original idempotency key. */
+    public RejectCallNotifier.Request newRequest(String channelId, String idempotencyKey) {
+        return new RejectCallNotifier.Request(idempotencyKey, baseUrl, buildUrl(channelId), headers);
+    }
+
+    /** Form-encodes and then swaps '+' for "%20", as a path segment needs (e.g. PJSIP/1280_... becomes PJSIP%2F1280_...). */
+    static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name()).replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        }
+    }
+}
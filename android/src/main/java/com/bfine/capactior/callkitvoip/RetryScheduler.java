@@ -0,0 +1,248 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs retries for failed call operations on a dedicated background thread, never the main thread.
+ * Delays use full-jitter exponential backoff so retries from many calls do not line up, every
+ * operation has a monotonic deadline, pending retries can be cancelled by connectionId when the call
+ * ends, and a process-wide budget caps how many retries can be spent per window so a failing
+ * dependency is not hammered.
+ */
+public final class RetryScheduler {
+    private static final String TAG = "RetryScheduler";
+
+    /** Retries allowed across all operations per budget window. */
+    static final int RETRY_BUDGET = 20;
+    static final long BUDGET_WINDOW_MS = 60_000;
+
+    public interface Callback {
+        /** attempt is the 1-based number of the retry about to be scheduled. */
+        void onRetry(int attempt, long delayMs);
+
+        void onSuccess();
+
+        /** Called once when the operation gives up; reason is one of the FAILURE_* constants. */
+        void onFailure(String reason, Exception lastError);
+    }
+
+    public static final String FAILURE_MAX_ATTEMPTS = "maxAttempts";
+    public static final String FAILURE_DEADLINE = "deadline";
+    public static final String FAILURE_BUDGET = "budget";
+    public static final String FAILURE_CANCELLED = "cancelled";
+
+    public static class Policy {
+        final int maxAttempts;
+        final long baseDelayMs;
+        final long maxDelayMs;
+        final long deadlineMs;
+
+        /**
+         * @param maxAttempts total attempts including the first one
+         * @param deadlineMs  time from the first attempt after which no further retry is started
+         */
+        public Policy(int maxAttempts, long baseDelayMs, long maxDelayMs, long deadlineMs) {
+            if (maxAttempts < 1 || baseDelayMs < 1 || maxDelayMs < baseDelayMs || deadlineMs < 0) {
+                throw new IllegalArgumentException("Invalid retry policy");
+            }
+            this.maxAttempts = maxAttempts;
+            this.baseDelayMs = baseDelayMs;
+            this.maxDelayMs = maxDelayMs;
+            this.deadlineMs = deadlineMs;
+        }
+
+        /** Full jitter: uniformly random between 0 and the capped exponential delay for this retry. */
+        long delayFor(int retry) {
+            int shift = Math.min(retry - 1, 30);
+            long cap = Math.min(maxDelayMs, baseDelayMs << shift);
+            return ThreadLocalRandom.current().nextLong(cap + 1);
+        }
+    }
+
+    /** Handle for a running operation; cancelling it stops any retry that has not started yet. */
+    public static final class Operation {
+        final String connectionId;
+        final Runnable work;
+        final Callback callback;
+        final Policy policy;
+        final long deadline;
+        int attempt;
+        private volatile boolean cancelled;
+        private volatile ScheduledFuture<?> pending;
+
+        Operation(String connectionId, Runnable work, Callback callback, Policy policy) {
+            this.connectionId = connectionId;
+            this.work = work;
+            this.callback = callback;
+            this.policy = policy;
+            this.deadline = CallClock.elapsedMillis() + policy.deadlineMs;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            ScheduledFuture<?> future = pending;
+            if (future != null && future.cancel(false)) {
+                finish();
+                if (callback != null) {
+                    callback.onFailure(FAILURE_CANCELLED, null);
+                }
+            }
+        }
+
+        void finish() {
+            active.remove(this);
+        }
+    }
+
+    private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "CallKitVoip-Retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    private static final Set<Operation> active = Collections.newSetFromMap(new ConcurrentHashMap<Operation, Boolean>());
+
+    private static final Object budgetLock = new Object();
+    private static long budgetWindowStart = Long.MIN_VALUE;
+    private static int budgetUsed = 0;
+
+
+    private RetryScheduler() {
+    }
+
+    /**
+     * Runs work immediately on the calling thread; if it throws, retries it on the retry thread
+     * according to policy. Callbacks for the first attempt run on the calling thread, later ones on
+     * the retry thread. connectionId may be null for work not tied to a call.
+     */
+    public static Operation run(String connectionId, Runnable work, Policy policy, Callback callback) {
+        Operation operation = new Operation(connectionId, work, callback, policy);
+        active.add(operation);
+        attempt(operation);
+        return operation;
+    }
+
+    /** Cancels every pending retry for connectionId; an attempt already running is allowed to finish. */
+    public static void cancel(String connectionId) {
+        if (connectionId == null) {
+            return;
+        }
+        for (Operation operation : active) {
+            if (connectionId.equals(operation.connectionId)) {
+                operation.cancel();
+            }
+        }
+    }
+
+    private static void attempt(Operation operation) {
+        if (operation.cancelled) {
+            operation.finish();
+            if (operation.callback != null) {
+                operation.callback.onFailure(FAILURE_CANCELLED, null);
+            }
+            return;
+        }
+
+        operation.attempt++;
+        try {
+            operation.work.run();
+        } catch (Exception e) {
+            scheduleRetry(operation, e);
+            return;
+        }
+
+        operation.finish();
+        if (operation.callback != null) {
+            operation.callback.onSuccess();
+        }
+    }
+
+    private static void scheduleRetry(Operation operation, Exception error) {
+        String failure = null;
+        long delay = 0;
+
+        if (operation.attempt >= operation.policy.maxAttempts) {
+            failure = FAILURE_MAX_ATTEMPTS;
+        } else {
+            delay = operation.policy.delayFor(operation.attempt);
+            if (CallClock.elapsedMillis() + delay > operation.deadline) {
+                failure = FAILURE_DEADLINE;
+            } else if (!acquireBudget()) {
+                failure = FAILURE_BUDGET;
+            }
+        }
+
+        if (failure != null) {
+            Log.e(TAG, "Giving up after " + operation.attempt + " attempt(s) (" + failure + ") for connectionId: "
+                + operation.connectionId, error);
+            operation.finish();
+            if (operation.callback != null) {
+                operation.callback.onFailure(failure, error);
+            }
+            return;
+        }
+
+        Log.w(TAG, "Attempt " + operation.attempt + "/" + operation.policy.maxAttempts + " failed for connectionId: "
+            + operation.connectionId + ", retrying in " + delay + "ms", error);
+        if (operation.connectionId != null) {
+            CallQualityMonitor.trackRetry(operation.connectionId);
+        }
+        if (operation.callback != null) {
+            operation.callback.onRetry(operation.attempt, delay);
+        }
+
+        operation.pending = executor.schedule(() -> attempt(operation), delay, TimeUnit.MILLISECONDS);
+        // cancel() may have run between the cancelled check in attempt() and pending being set.
+        if (operation.cancelled && operation.pending.cancel(false)) {
+            operation.finish();
+            if (operation.callback != null) {
+                operation.callback.onFailure(FAILURE_CANCELLED, null);
+            }
+        }
+    }
+
+    private static boolean acquireBudget() {
+        long now = CallClock.elapsedMillis();
+        synchronized (budgetLock) {
+            if (budgetWindowStart == Long.MIN_VALUE || now - budgetWindowStart >= BUDGET_WINDOW_MS) {
+                budgetWindowStart = now;
+                budgetUsed = 0;
+            }
+            if (budgetUsed >= RETRY_BUDGET) {
+                return false;
+            }
+            budgetUsed++;
+            return true;
+        }
+    }
+
+    /** Starts a fresh budget window at the next retry, so tests do not inherit budget spent by others. */
+    @VisibleForTesting
+    static void resetBudget() {
+        synchronized (budgetLock) {
+            budgetWindowStart = Long.MIN_VALUE;
+            budgetUsed = 0;
+        }
+    }
+}
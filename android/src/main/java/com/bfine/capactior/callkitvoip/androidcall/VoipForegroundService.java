@@ -23,6 +23,10 @@ import android.view.WindowManager;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
+import com.bfine.capactior.callkitvoip.CallQualityMonitor;
+import com.bfine.capactior.callkitvoip.CallRegistry;
+import com.bfine.capactior.callkitvoip.FlightRecorder;
+
 
 import java.util.Objects;
 
@@ -48,6 +52,7 @@ public class VoipForegroundService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        FlightRecorder.record(FlightRecorder.Event.FOREGROUND_SERVICE_STOPPED, connectionId);
         stop_ringtone();
         releaseWakeLock();
     }
@@ -152,6 +157,7 @@ public class VoipForegroundService extends Service {
         }
         
         Log.d("VoipForegroundService","build_incoming_call_notification for "+displayName+" (connectionId: "+connectionId+")");
+        CallRegistry.transition(connectionId, CallRegistry.CallState.RINGING);
 
         try {
             Intent answerCallIntent = getPackageManager().getLaunchIntentForPackage(getPackageName());
@@ -278,6 +284,8 @@ public class VoipForegroundService extends Service {
                 createIncomingChannel();
                 startForeground(120, notificationBuilder.build());
             }
+            CallQualityMonitor.trackStage(connectionId, CallQualityMonitor.Stage.NOTIFICATION_SHOWN);
+            FlightRecorder.record(FlightRecorder.Event.NOTIFICATION_SHOWN, connectionId);
 
             long[] pattern = {0, 100, 1000, 300};
             vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
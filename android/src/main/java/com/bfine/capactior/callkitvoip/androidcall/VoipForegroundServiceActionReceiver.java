@@ -10,7 +10,9 @@ import android.util.Log;
 
 import com.bfine.capactior.callkitvoip.CallConfig;
 import com.bfine.capactior.callkitvoip.CallKitVoipPlugin;
+import com.bfine.capactior.callkitvoip.FlightRecorder;
 import com.bfine.capactior.callkitvoip.MyConnectionService;
+import com.bfine.capactior.callkitvoip.PersistenceExecutor;
 
 public class VoipForegroundServiceActionReceiver extends BroadcastReceiver {
     private static final String TAG = "VoipActionReceiver";
@@ -25,15 +27,20 @@ public class VoipForegroundServiceActionReceiver extends BroadcastReceiver {
                 performClickAction(context, action, connectionId);
             }
         }
+
+        // Keep the process alive until queued events and call state have reached disk.
+        final PendingResult pendingResult = goAsync();
+        PersistenceExecutor.flushAsync(pendingResult::finish);
     }
 
     private void performClickAction(Context context, String action, String connectionId) {
         Log.d(TAG, "action: " + action + ", connectionId: " + connectionId);
 
         if (action.equals("CANCEL_CALL")) {
+            FlightRecorder.record(FlightRecorder.Event.NOTIFICATION_REJECTED, connectionId);
             CallConfig config = CallKitVoipPlugin.getCallConfig(connectionId);
             if (config != null) {
-                CallKitVoipPlugin.notifyRejectToBackend(context.getApplicationContext(), config);
+                CallKitVoipPlugin.notifyRejectToBackend(context.getApplicationContext(), connectionId, config);
             }
 
             context.stopService(new Intent(context, VoipForegroundService.class));
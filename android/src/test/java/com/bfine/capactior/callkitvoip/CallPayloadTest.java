@@ -0,0 +1,89 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import com.getcapacitor.JSObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** The per-call bridge payload in {@link CallRegistry}: cached once, copied for every event. */
+public class CallPayloadTest {
+    private static final String CONNECTION_ID = "payload-connection";
+
+    private CallRegistry.Entry call;
+
+    @Before
+    public void setUp() {
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+        call = CallRegistry.register(CONNECTION_ID, new CallConfig("call-1", "audio", "60", "42", "call", "voice", "PJSIP/1280_1"));
+    }
+
+    @After
+    public void tearDown() {
+        CallRegistry.remove(CONNECTION_ID);
+    }
+
+    private static void assertCallFields(JSObject payload) {
+        assertEquals("call-1", payload.getString("callId"));
+        assertEquals("audio", payload.getString("media"));
+        assertEquals("60", payload.getString("duration"));
+        assertEquals("42", payload.getString("bookingId"));
+        assertEquals("call", payload.getString("type"));
+        assertEquals("voice", payload.getString("call_type"));
+        assertEquals("PJSIP/1280_1", payload.getString("channel_id"));
+        assertEquals(CONNECTION_ID, payload.getString("uuid"));
+    }
+
+    @Test
+    public void payloadCarriesTheCallFields() {
+        JSObject payload = call.getPayload();
+
+        assertCallFields(payload);
+        assertEquals(8, payload.length());
+    }
+
+    @Test
+    public void eachEventGetsItsOwnCopy() {
+        JSObject first = call.getPayload();
+        first.put("uuid", "other");
+        first.put("extra", 1);
+        first.remove("callId");
+
+        JSObject second = CallRegistry.get(CONNECTION_ID).getPayload();
+        assertNotSame(first, second);
+        assertCallFields(second);
+        assertEquals(8, second.length());
+    }
+
+    @Test
+    public void overlayAddsAFieldToACopyOnly() {
+        JSObject overlaid = call.payloadWith("reason", "timeout");
+        JSObject replaced = call.payloadWith("media", "video");
+
+        assertCallFields(overlaid);
+        assertEquals("timeout", overlaid.getString("reason"));
+        assertEquals(9, overlaid.length());
+        assertEquals("video", replaced.getString("media"));
+        assertEquals(8, replaced.length());
+
+        assertFalse(call.getPayload().has("reason"));
+        assertEquals("audio", call.getPayload().getString("media"));
+    }
+
+    @Test
+    public void nullConfigFieldsAreLeftOut() {
+        CallRegistry.Entry sparse = CallRegistry.register("payload-sparse", new CallConfig("call-2", "audio", "60", null, null, null, null));
+        try {
+            JSObject payload = sparse.getPayload();
+
+            assertEquals(4, payload.length());
+            assertEquals("call-2", payload.getString("callId"));
+            assertEquals("payload-sparse", payload.getString("uuid"));
+            assertFalse(payload.has("bookingId"));
+        } finally {
+            CallRegistry.remove("payload-sparse");
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * FCM, main and plugin threads update the same calls' metrics at once. Counters must not lose
+ * updates, each stage must be measured exactly once, and nothing may throw.
+ */
+public class CallQualityMonitorStressTest {
+    private static final int THREADS = 16;
+    private static final int RETRIES_PER_THREAD = 20_000;
+    private static final int CALLS = 500;
+    private static final long RING_DELAY_MS = 250;
+
+    private CallClock.VirtualSource clock;
+    private ExecutorService workers;
+
+    @Before
+    public void setUp() {
+        clock = new CallClock.VirtualSource(1_700_000_000_000L);
+        CallClock.setSource(clock);
+        workers = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        workers.shutdownNow();
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+    }
+
+    /** Runs task on every worker at once; rethrows the first failure. */
+    private void runConcurrently(final Callable<Void> task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(workers.submit(() -> {
+                start.await();
+                return task.call();
+            }));
+        }
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+
+    private static long histogramCount(CallQualityMonitor.Stage stage) {
+        return ((Number) CallQualityMonitor.getLatencyHistograms().get(stage.histogramName).get("count")).longValue();
+    }
+
+    @Test
+    public void concurrentRetriesAreAllCounted() throws Exception {
+        final String connectionId = "stress-retries";
+        CallQualityMonitor.trackCallStart(connectionId);
+        try {
+            runConcurrently(() -> {
+                for (int i = 0; i < RETRIES_PER_THREAD; i++) {
+                    CallQualityMonitor.trackRetry(connectionId);
+                }
+                return null;
+            });
+
+            assertEquals(THREADS * RETRIES_PER_THREAD, CallQualityMonitor.getCallMetrics(connectionId).get("retryCount"));
+        } finally {
+            CallQualityMonitor.clearMetrics(connectionId);
+        }
+    }
+
+    @Test
+    public void racingStageReportsAreMeasuredOnce() throws Exception {
+        final List<String> connectionIds = new ArrayList<>();
+        for (int i = 0; i < CALLS; i++) {
+            connectionIds.add("stress-stage-" + i);
+            CallQualityMonitor.trackCallStart(connectionIds.get(i));
+        }
+        clock.advanceMillis(RING_DELAY_MS);
+        long ringingBefore = histogramCount(CallQualityMonitor.Stage.RINGING);
+
+        try {
+            // Telecom's onShowIncomingCallUi and the notification path both report RINGING for every call.
+            runConcurrently(() -> {
+                for (String connectionId : connectionIds) {
+                    CallQualityMonitor.trackStage(connectionId, CallQualityMonitor.Stage.RINGING);
+                }
+                return null;
+            });
+
+            assertEquals(CALLS, histogramCount(CallQualityMonitor.Stage.RINGING) - ringingBefore);
+            Map<String, Object> ringing = CallQualityMonitor.getLatencyHistograms().get(CallQualityMonitor.Stage.RINGING.histogramName);
+            assertEquals(RING_DELAY_MS, ((Number) ringing.get("max")).longValue());
+        } finally {
+            for (String connectionId : connectionIds) {
+                CallQualityMonitor.clearMetrics(connectionId);
+            }
+        }
+    }
+
+    @Test
+    public void callsStartingEndingAndReadingAtOnceNeverThrow() throws Exception {
+        final AtomicInteger threadIds = new AtomicInteger();
+        final AtomicInteger survivors = new AtomicInteger();
+        runConcurrently(() -> {
+            int thread = threadIds.getAndIncrement();
+            for (int i = 0; i < CALLS; i++) {
+                String connectionId = "stress-lifecycle-" + thread + "_" + i;
+                CallQualityMonitor.trackCallStart(connectionId);
+                CallQualityMonitor.trackStage(connectionId, CallQualityMonitor.Stage.NOTIFICATION_SHOWN);
+                CallQualityMonitor.trackRetry(connectionId);
+                CallQualityMonitor.trackQueueFlush(connectionId, i);
+                CallQualityMonitor.getLatencyHistograms();
+                CallQualityMonitor.trackCallEnd(connectionId, "stress");
+                if (i % 2 == 0) {
+                    CallQualityMonitor.clearMetrics(connectionId);
+                } else {
+                    survivors.incrementAndGet();
+                }
+            }
+            return null;
+        });
+
+        try {
+            for (int thread = 0; thread < THREADS; thread++) {
+                for (int i = 1; i < CALLS; i += 2) {
+                    Map<String, Object> metrics = CallQualityMonitor.getCallMetrics("stress-lifecycle-" + thread + "_" + i);
+                    assertEquals(1, metrics.get("retryCount"));
+                    assertEquals((long) i, metrics.get("queueFlushLatencyMs"));
+                    assertEquals("stress", metrics.get("endReason"));
+                }
+                assertTrue(CallQualityMonitor.getCallMetrics("stress-lifecycle-" + thread + "_0").isEmpty());
+            }
+            assertEquals(THREADS * CALLS / 2, survivors.get());
+        } finally {
+            for (int thread = 0; thread < THREADS; thread++) {
+                for (int i = 1; i < CALLS; i += 2) {
+                    CallQualityMonitor.clearMetrics("stress-lifecycle-" + thread + "_" + i);
+                }
+            }
+        }
+    }
+}
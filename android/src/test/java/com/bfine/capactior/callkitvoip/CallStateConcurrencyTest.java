@@ -0,0 +1,246 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The FCM thread, Telecom callbacks and plugin methods write call state and registry entries at the
+ * same time. No update may be lost, in memory or on disk.
+ */
+public class CallStateConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int CALLS_PER_THREAD = 200;
+
+    private static Context context;
+    private static File callsDir;
+
+    private ExecutorService workers;
+
+    @BeforeClass
+    public static void setUpContext() throws Exception {
+        context = TestSupport.context();
+        callsDir = new File(TestSupport.filesDir(), "callkit_calls");
+    }
+
+    @Before
+    public void setUp() {
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+        CallStateManager.clearAllCallStates(context);
+        TestSupport.flushWrites();
+        workers = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        workers.shutdownNow();
+        CallStateManager.clearAllCallStates(context);
+        TestSupport.flushWrites();
+    }
+
+    private static CallConfig config(String callId) {
+        return new CallConfig(callId, "audio", "60", "42", "call", "voice", "PJSIP/" + callId);
+    }
+
+    /** Runs task on every worker at once and waits for all of them. */
+    private <T> List<T> runConcurrently(final Callable<T> task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<T>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(workers.submit(() -> {
+                start.await();
+                return task.call();
+            }));
+        }
+        start.countDown();
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    /** Call states as persisted, by connectionId to callId. */
+    private static Map<String, String> readCallFiles() throws Exception {
+        Map<String, String> persisted = new HashMap<>();
+        File[] files = callsDir.listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            String name = file.getName();
+            assertTrue("stray file " + name, name.startsWith("call_") && !name.endsWith(".tmp"));
+            String connectionId = URLDecoder.decode(name.substring("call_".length()), StandardCharsets.UTF_8.name());
+            JSONObject callData = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            persisted.put(connectionId, callData.getString("callId"));
+        }
+        return persisted;
+    }
+
+    @Test
+    public void concurrentSavesAndClearsLoseNoUpdates() throws Exception {
+        final AtomicInteger threadIds = new AtomicInteger();
+        runConcurrently(() -> {
+            int thread = threadIds.getAndIncrement();
+            for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                String connectionId = "PJSIP/" + thread + "_" + i;
+                CallStateManager.saveCallState(context, connectionId, config("first-" + thread + "-" + i));
+                CallStateManager.saveCallState(context, connectionId, config("latest-" + thread + "-" + i));
+                if (i % 3 == 0) {
+                    CallStateManager.clearCallState(context, connectionId);
+                }
+            }
+            return null;
+        });
+
+        Map<String, String> expected = new HashMap<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                if (i % 3 != 0) {
+                    expected.put("PJSIP/" + thread + "_" + i, "latest-" + thread + "-" + i);
+                }
+            }
+        }
+
+        Map<String, String> inMemory = new HashMap<>();
+        for (Map.Entry<String, CallConfig> entry : CallStateManager.restoreCallStates(context).entrySet()) {
+            inMemory.put(entry.getKey(), entry.getValue().callId);
+        }
+        assertEquals(expected, inMemory);
+
+        TestSupport.flushWrites();
+        assertEquals(expected, readCallFiles());
+    }
+
+    @Test
+    public void racingWritersToOneCallPersistTheFinalState() throws Exception {
+        final String connectionId = "PJSIP/shared";
+        final AtomicInteger threadIds = new AtomicInteger();
+        runConcurrently(() -> {
+            int thread = threadIds.getAndIncrement();
+            for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                CallStateManager.saveCallState(context, connectionId, config("writer-" + thread + "-" + i));
+            }
+            return null;
+        });
+
+        String finalCallId = CallStateManager.restoreCallStates(context).get(connectionId).callId;
+        assertTrue(finalCallId.endsWith("-" + (CALLS_PER_THREAD - 1)));
+
+        TestSupport.flushWrites();
+        Map<String, String> persisted = readCallFiles();
+        assertEquals(1, persisted.size());
+        assertEquals(finalCallId, persisted.get(connectionId));
+    }
+
+    @Test
+    public void concurrentRegistrationsAreAllKept() throws Exception {
+        final AtomicInteger threadIds = new AtomicInteger();
+        runConcurrently(() -> {
+            int thread = threadIds.getAndIncrement();
+            for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                CallRegistry.register("registry-" + thread + "_" + i, config("call-" + thread + "-" + i));
+            }
+            return null;
+        });
+
+        try {
+            for (int thread = 0; thread < THREADS; thread++) {
+                for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                    assertEquals("call-" + thread + "-" + i, CallRegistry.getConfig("registry-" + thread + "_" + i).callId);
+                }
+            }
+        } finally {
+            for (int thread = 0; thread < THREADS; thread++) {
+                for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                    CallRegistry.remove("registry-" + thread + "_" + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void racingRegisterIfAbsentAgreesOnOneEntry() throws Exception {
+        final String connectionId = "registry-restored";
+        try {
+            List<CallRegistry.Entry> entries = runConcurrently(() -> CallRegistry.registerIfAbsent(connectionId, config("restored")));
+
+            Set<CallRegistry.Entry> distinct = new HashSet<>(entries);
+            assertEquals(1, distinct.size());
+            assertSame(CallRegistry.get(connectionId), entries.get(0));
+        } finally {
+            CallRegistry.remove(connectionId);
+        }
+    }
+
+    private static boolean transitionRejectionRecorded(String connectionId) {
+        return FlightRecorder.dump().contains(
+            " " + Integer.toHexString(FlightRecorder.hash(connectionId)) + " " + FlightRecorder.Event.TRANSITION_REJECTED + "\n");
+    }
+
+    @Test
+    public void racingReportsOfTheSameStepAreAllAccepted() throws Exception {
+        final String connectionId = "registry-answered";
+        CallRegistry.register(connectionId, config("answered"));
+        try {
+            assertTrue(CallRegistry.transition(connectionId, CallRegistry.CallState.RINGING));
+
+            // Telecom's onAnswer and the JS answerCall both report the answer, in any order.
+            List<Boolean> answered = runConcurrently(() -> CallRegistry.transition(connectionId, CallRegistry.CallState.ANSWERED));
+
+            for (Boolean accepted : answered) {
+                assertTrue(accepted);
+            }
+            assertEquals(CallRegistry.CallState.ANSWERED, CallRegistry.get(connectionId).getState());
+            assertFalse(transitionRejectionRecorded(connectionId));
+
+            assertFalse(CallRegistry.transition(connectionId, CallRegistry.CallState.RINGING));
+            assertTrue(transitionRejectionRecorded(connectionId));
+        } finally {
+            CallRegistry.remove(connectionId);
+        }
+    }
+
+    @Test
+    public void repeatedStepKeepsItsFirstTimestamp() {
+        CallClock.VirtualSource clock = new CallClock.VirtualSource(1_700_000_000_000L);
+        CallClock.setSource(clock);
+        String connectionId = "registry-repeated";
+        CallRegistry.Entry call = CallRegistry.register(connectionId, config("repeated"));
+        try {
+            assertTrue(CallRegistry.transition(connectionId, CallRegistry.CallState.RINGING));
+            long ringingAt = call.getStateTimestamp(CallRegistry.CallState.RINGING);
+
+            clock.advanceMillis(1_000);
+            assertTrue(CallRegistry.transition(connectionId, CallRegistry.CallState.RINGING));
+
+            assertEquals(ringingAt, call.getStateTimestamp(CallRegistry.CallState.RINGING));
+            assertEquals(CallRegistry.CallState.RINGING, call.getState());
+        } finally {
+            CallRegistry.remove(connectionId);
+            CallClock.setSource(TestSupport.HOST_CLOCK);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Per-call persistence cost on the calling thread: CallStateManager's in-memory map with coalesced
+ * background writes, against the synchronous per-call files it replaced. Runs only with
+ * {@code -Pbenchmarks}; {@link CallStatePersistenceTest} covers the write coalescing and restore.
+ */
+public class CallStatePersistenceBenchmark {
+    private static final int CALLS = 50;
+    private static final int TRIALS = 5;
+
+    private static Context context;
+
+    @BeforeClass
+    public static void setUpContext() throws Exception {
+        context = TestSupport.context();
+    }
+
+    @Before
+    public void setUp() {
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+        CallStateManager.clearAllCallStates(context);
+        TestSupport.flushWrites();
+    }
+
+    @After
+    public void tearDown() {
+        CallStateManager.clearAllCallStates(context);
+        TestSupport.flushWrites();
+    }
+
+    private static CallConfig config(int i) {
+        return new CallConfig("call-" + i, "audio", "60", "42", "call", "voice", "PJSIP/1280_" + i);
+    }
+
+    /** CallStateManager before the in-memory map: every save writes and every restore reads the files. */
+    private static final class SynchronousCallStore {
+        private final File dir;
+
+        SynchronousCallStore(File dir) {
+            this.dir = dir;
+            dir.mkdirs();
+        }
+
+        void save(String connectionId, CallConfig config) throws Exception {
+            JSONObject callData = new JSONObject();
+            callData.put("callId", config.callId);
+            callData.put("media", config.media);
+            callData.put("duration", config.duration);
+            callData.put("bookingId", config.bookingId);
+            callData.put("type", config.type);
+            callData.put("call_type", config.call_type);
+            callData.put("channel_id", config.channel_id);
+            callData.put("timestamp", System.currentTimeMillis());
+
+            File target = new File(dir, "call_" + URLEncoder.encode(connectionId, StandardCharsets.UTF_8.name()));
+            File temp = File.createTempFile(target.getName(), ".tmp", dir);
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(callData.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            assertTrue(temp.renameTo(target));
+        }
+
+        Map<String, CallConfig> restore() throws Exception {
+            Map<String, CallConfig> calls = new HashMap<>();
+            File[] files = dir.listFiles();
+            for (File file : files) {
+                JSONObject callData = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                calls.put(file.getName(), new CallConfig(callData.getString("callId"), callData.getString("media"),
+                    callData.getString("duration"), callData.optString("bookingId"), callData.optString("type"),
+                    callData.optString("call_type"), callData.optString("channel_id")));
+            }
+            return calls;
+        }
+    }
+
+    @Test
+    public void saveAndRestoreCostLessThanSynchronousFiles() throws Exception {
+        File legacyDir = Files.createTempDirectory("callkitvoip-legacy-calls").toFile();
+        SynchronousCallStore legacy = new SynchronousCallStore(legacyDir);
+
+        long legacySaveNanos = Long.MAX_VALUE;
+        long saveNanos = Long.MAX_VALUE;
+        long legacyRestoreNanos = Long.MAX_VALUE;
+        long restoreNanos = Long.MAX_VALUE;
+        for (int trial = 0; trial < TRIALS; trial++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++) {
+                legacy.save("PJSIP/1280_" + i, config(i));
+            }
+            legacySaveNanos = Math.min(legacySaveNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++) {
+                CallStateManager.saveCallState(context, "PJSIP/1280_" + i, config(i));
+            }
+            saveNanos = Math.min(saveNanos, System.nanoTime() - start);
+            TestSupport.flushWrites();
+
+            start = System.nanoTime();
+            assertEquals(CALLS, legacy.restore().size());
+            legacyRestoreNanos = Math.min(legacyRestoreNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals(CALLS, CallStateManager.restoreCallStates(context).size());
+            restoreNanos = Math.min(restoreNanos, System.nanoTime() - start);
+        }
+
+        for (File file : legacyDir.listFiles()) {
+            file.delete();
+        }
+        legacyDir.delete();
+
+        // Best of several trials, so host load mostly cancels out of the ratio.
+        assertTrue("save: " + saveNanos / CALLS + "ns/op vs " + legacySaveNanos / CALLS + "ns/op before",
+            saveNanos * 5 < legacySaveNanos);
+        assertTrue("restore: " + restoreNanos + "ns vs " + legacyRestoreNanos + "ns before",
+            restoreNanos * 5 < legacyRestoreNanos);
+    }
+}
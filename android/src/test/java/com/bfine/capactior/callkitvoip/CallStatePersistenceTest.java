@@ -0,0 +1,103 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * CallStateManager's in-memory call map: saves are coalesced into background writes and restores are
+ * served from memory. {@link CallStatePersistenceBenchmark} measures the cost against per-call files.
+ */
+public class CallStatePersistenceTest {
+    private static final int CALLS = 50;
+    private static final int SAVES = 1000;
+
+    private static Context context;
+    private static File callsDir;
+
+    @BeforeClass
+    public static void setUpContext() throws Exception {
+        context = TestSupport.context();
+        callsDir = new File(TestSupport.filesDir(), "callkit_calls");
+    }
+
+    @Before
+    public void setUp() {
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+        CallStateManager.clearAllCallStates(context);
+        TestSupport.flushWrites();
+    }
+
+    @After
+    public void tearDown() {
+        CallStateManager.clearAllCallStates(context);
+        TestSupport.flushWrites();
+    }
+
+    private static CallConfig config(int i) {
+        return new CallConfig("call-" + i, "audio", "60", "42", "call", "voice", "PJSIP/1280_" + i);
+    }
+
+    private static long stat(String name) {
+        return ((Number) PersistenceExecutor.getStats().get(name)).longValue();
+    }
+
+    @Test
+    public void repeatedSavesOfOneCallReachDiskOnce() {
+        long completedBefore = stat("completedWrites");
+        long coalescedBefore = stat("coalescedWrites");
+
+        // Hold the persistence thread so every save lands inside the same coalescing window.
+        final CountDownLatch release = new CountDownLatch(1);
+        PersistenceExecutor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            for (int i = 0; i < SAVES; i++) {
+                CallStateManager.saveCallState(context, "PJSIP/1280_busy", config(i));
+            }
+        } finally {
+            release.countDown();
+        }
+        TestSupport.flushWrites();
+
+        // The held write itself, then a single write for all the saves.
+        assertEquals(2, stat("completedWrites") - completedBefore);
+        assertEquals(SAVES - 1, stat("coalescedWrites") - coalescedBefore);
+        assertEquals("call-" + (SAVES - 1), CallStateManager.restoreCallStates(context).get("PJSIP/1280_busy").callId);
+    }
+
+    @Test
+    public void restoreIsServedFromMemory() throws Exception {
+        for (int i = 0; i < CALLS; i++) {
+            CallStateManager.saveCallState(context, "PJSIP/1280_" + i, config(i));
+        }
+        TestSupport.flushWrites();
+        File[] files = callsDir.listFiles();
+        assertEquals(CALLS, files.length);
+
+        // Nothing on disk is read again once the process has restored.
+        for (File file : files) {
+            Files.write(file.toPath(), "not json".getBytes(StandardCharsets.UTF_8));
+        }
+        Map<String, CallConfig> restored = CallStateManager.restoreCallStates(context);
+
+        assertEquals(CALLS, restored.size());
+        assertEquals("call-7", restored.get("PJSIP/1280_7").callId);
+    }
+}
@@ -0,0 +1,163 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Cost of queueEvent at queue lengths of 1, 100 and 10k events, journal against the
+ * SharedPreferences JSON store it replaced. Measures bytes written and bytes allocated on the calling
+ * thread rather than time. Runs only with {@code -Pbenchmarks}; {@link EventJournalTest} covers what
+ * the journal writes.
+ */
+public class EventJournalBenchmark {
+    private static final int[] QUEUE_SIZES = {1, 100, 10_000};
+    private static final int SAMPLES = 200;
+
+    private static Context context;
+    private static File journalFile;
+
+    private int savedCapacity;
+    private EventQueueManager.OverflowPolicy savedPolicy;
+
+    @BeforeClass
+    public static void setUpContext() throws Exception {
+        context = TestSupport.context();
+        journalFile = new File(TestSupport.filesDir(), EventJournal.FILE_NAME);
+    }
+
+    @Before
+    public void setUp() {
+        CallClock.setSource(new CallClock.VirtualSource(1_700_000_000_000L));
+        savedCapacity = EventQueueManager.getCapacity();
+        savedPolicy = EventQueueManager.getOverflowPolicy();
+        EventQueueManager.configure(QUEUE_SIZES[QUEUE_SIZES.length - 1] + SAMPLES + 1, EventQueueManager.OverflowPolicy.DROP_OLDEST);
+        EventQueueManager.clearQueue(context);
+        TestSupport.flushWrites();
+    }
+
+    @After
+    public void tearDown() {
+        EventQueueManager.clearQueue(context);
+        EventQueueManager.configure(savedCapacity, savedPolicy);
+        TestSupport.flushWrites();
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+    }
+
+    /** The queue before the journal: the whole queue re-serialized to one SharedPreferences key per event. */
+    private static final class LegacyJsonQueue {
+        private final List<EventQueueManager.QueuedEvent> events = new ArrayList<>();
+        private final SharedPreferences prefs;
+
+        LegacyJsonQueue(SharedPreferences prefs) {
+            this.prefs = prefs;
+        }
+
+        /** Adds an event without persisting, to fill the queue quickly. */
+        void add(String eventName, String connectionId) {
+            events.add(new EventQueueManager.QueuedEvent(eventName, connectionId, CallClock.wallMillis(), 0));
+        }
+
+        void queueEvent(String eventName, String connectionId) throws Exception {
+            add(eventName, connectionId);
+            JSONArray eventsArray = new JSONArray();
+            for (EventQueueManager.QueuedEvent event : events) {
+                JSONObject eventObj = new JSONObject();
+                eventObj.put("eventName", event.eventName);
+                eventObj.put("connectionId", event.connectionId);
+                eventObj.put("timestamp", event.timestamp);
+                eventsArray.put(eventObj);
+            }
+            prefs.edit().putString("event_queue", eventsArray.toString()).apply();
+        }
+    }
+
+    private static String connectionId(int i) {
+        return "connection-" + i;
+    }
+
+    @Test
+    public void journalAppendCostIsIndependentOfQueueLength() throws Exception {
+        long[] bytesPerEvent = new long[QUEUE_SIZES.length];
+        long[] allocatedPerEvent = new long[QUEUE_SIZES.length];
+        int queued = 0;
+
+        for (int size = 0; size < QUEUE_SIZES.length; size++) {
+            while (queued < QUEUE_SIZES[size]) {
+                EventQueueManager.queueEvent(context, "callEnded", connectionId(queued++));
+            }
+            TestSupport.flushWrites();
+
+            long lengthBefore = journalFile.length();
+            long allocatedBefore = TestSupport.allocatedBytes();
+            for (int i = 0; i < SAMPLES; i++) {
+                EventQueueManager.queueEvent(context, "callEnded", connectionId(queued + i));
+            }
+            allocatedPerEvent[size] = (TestSupport.allocatedBytes() - allocatedBefore) / SAMPLES;
+            TestSupport.flushWrites();
+            bytesPerEvent[size] = (journalFile.length() - lengthBefore) / SAMPLES;
+
+            // Back to the nominal size for the next step.
+            List<EventQueueManager.QueuedEvent> events = EventQueueManager.getQueuedEvents(context);
+            EventQueueManager.acknowledgeEvents(context, events.subList(events.size() - SAMPLES, events.size()));
+            TestSupport.flushWrites();
+        }
+
+        for (int size = 0; size < QUEUE_SIZES.length; size++) {
+            assertEquals("bytes written per event with " + QUEUE_SIZES[size] + " queued",
+                EventJournal.RECORD_SIZE, bytesPerEvent[size]);
+        }
+        assertTrue("allocation grew from " + allocatedPerEvent[0] + " to " + allocatedPerEvent[2] + " bytes per event",
+            allocatedPerEvent[2] < 2 * allocatedPerEvent[0]);
+    }
+
+    @Test
+    public void journalBeatsSharedPreferencesAtEveryQueueLength() throws Exception {
+        InMemorySharedPreferences prefs = new InMemorySharedPreferences();
+        LegacyJsonQueue legacy = new LegacyJsonQueue(prefs);
+        long[] legacyChars = new long[QUEUE_SIZES.length];
+        long[] legacyAllocated = new long[QUEUE_SIZES.length];
+        long[] journalAllocated = new long[QUEUE_SIZES.length];
+        int queued = 0;
+
+        for (int size = 0; size < QUEUE_SIZES.length; size++) {
+            while (queued < QUEUE_SIZES[size] - 1) {
+                legacy.add("callEnded", connectionId(queued));
+                EventQueueManager.queueEvent(context, "callEnded", connectionId(queued++));
+            }
+            TestSupport.flushWrites();
+
+            long charsBefore = prefs.getCharsWritten();
+            long allocatedBefore = TestSupport.allocatedBytes();
+            legacy.queueEvent("callEnded", connectionId(queued));
+            legacyAllocated[size] = TestSupport.allocatedBytes() - allocatedBefore;
+            legacyChars[size] = prefs.getCharsWritten() - charsBefore;
+
+            allocatedBefore = TestSupport.allocatedBytes();
+            EventQueueManager.queueEvent(context, "callEnded", connectionId(queued++));
+            journalAllocated[size] = TestSupport.allocatedBytes() - allocatedBefore;
+        }
+
+        // The legacy store rewrites every queued event, so its cost grows with the queue.
+        assertTrue(legacyChars[1] > 50 * legacyChars[0]);
+        assertTrue(legacyChars[2] > 50 * legacyChars[1]);
+        assertTrue(legacyAllocated[2] > 50 * legacyAllocated[1]);
+        // At 10k queued events the journal writes a thousandth of the bytes and allocates far less.
+        assertTrue(legacyChars[2] > 1000L * EventJournal.RECORD_SIZE);
+        assertTrue("legacy " + legacyAllocated[2] + " vs journal " + journalAllocated[2] + " bytes allocated",
+            legacyAllocated[2] > 100 * journalAllocated[2]);
+    }
+}
@@ -0,0 +1,138 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The journal behind {@link EventQueueManager}: what it writes per event, what a new process replays,
+ * and the one-time migration of the SharedPreferences queue it replaced.
+ */
+public class EventJournalTest {
+    private static final String LEGACY_PREFS = "callkit_event_queue";
+    private static final String LEGACY_KEY = "event_queue";
+
+    private static Context context;
+    private static File journalFile;
+
+    private int savedCapacity;
+    private EventQueueManager.OverflowPolicy savedPolicy;
+
+    @BeforeClass
+    public static void setUpContext() throws Exception {
+        context = TestSupport.context();
+        journalFile = new File(TestSupport.filesDir(), EventJournal.FILE_NAME);
+    }
+
+    @Before
+    public void setUp() {
+        CallClock.setSource(new CallClock.VirtualSource(1_700_000_000_000L));
+        savedCapacity = EventQueueManager.getCapacity();
+        savedPolicy = EventQueueManager.getOverflowPolicy();
+        EventQueueManager.configure(1_000, EventQueueManager.OverflowPolicy.DROP_OLDEST);
+        EventQueueManager.clearQueue(context);
+        TestSupport.flushWrites();
+    }
+
+    @After
+    public void tearDown() {
+        EventQueueManager.clearQueue(context);
+        EventQueueManager.configure(savedCapacity, savedPolicy);
+        TestSupport.flushWrites();
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+    }
+
+    private static JSONObject legacyEvent(String eventName, String connectionId) throws Exception {
+        JSONObject event = new JSONObject();
+        event.put("eventName", eventName);
+        event.put("connectionId", connectionId);
+        event.put("timestamp", CallClock.wallMillis());
+        return event;
+    }
+
+    @Test
+    public void eachQueuedEventAppendsOneRecord() {
+        for (int queued = 0; queued < 100; queued++) {
+            long lengthBefore = journalFile.length();
+            EventQueueManager.queueEvent(context, "callEnded", "record-" + queued);
+            TestSupport.flushWrites();
+            assertEquals(EventJournal.RECORD_SIZE, journalFile.length() - lengthBefore);
+        }
+    }
+
+    @Test
+    public void reopenedJournalReplaysOnlyUnacknowledgedEvents() {
+        EventQueueManager.queueEvent(context, "callAnswered", "replay-1");
+        EventQueueManager.queueEvent(context, "callRejected", "replay-2");
+        EventQueueManager.queueEvent(context, "callEnded", "replay-3");
+        List<EventQueueManager.QueuedEvent> queued = EventQueueManager.getQueuedEvents(context);
+        EventQueueManager.acknowledgeEvents(context, queued.subList(1, 2));
+        TestSupport.flushWrites();
+
+        EventQueueManager.reopenJournal();
+        List<EventQueueManager.QueuedEvent> replayed = EventQueueManager.getQueuedEvents(context);
+
+        assertEquals(2, replayed.size());
+        assertEquals("replay-1", replayed.get(0).connectionId);
+        assertEquals("callAnswered", replayed.get(0).eventName);
+        assertEquals("replay-3", replayed.get(1).connectionId);
+        assertEquals(queued.get(2).sequence, replayed.get(1).sequence);
+    }
+
+    @Test
+    public void legacyQueueIsReadableInTheProcessThatMigratesIt() throws Exception {
+        JSONArray legacy = new JSONArray();
+        legacy.put(legacyEvent("callAnswered", "legacy-1"));
+        legacy.put(legacyEvent("callRejected", "legacy-2"));
+        InMemorySharedPreferences prefs = TestSupport.preferences(LEGACY_PREFS);
+        prefs.edit().putString(LEGACY_KEY, legacy.toString()).commit();
+
+        // Hold the persistence thread so the migrated records are still queued, not on disk, when the
+        // queue is first read.
+        final CountDownLatch release = new CountDownLatch(1);
+        PersistenceExecutor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        List<EventQueueManager.QueuedEvent> events;
+        try {
+            EventQueueManager.reopenJournal();
+            events = EventQueueManager.getQueuedEvents(context);
+        } finally {
+            release.countDown();
+        }
+
+        assertEquals(2, events.size());
+        assertEquals("callAnswered", events.get(0).eventName);
+        assertEquals("legacy-1", events.get(0).connectionId);
+        assertEquals("callRejected", events.get(1).eventName);
+        assertEquals("legacy-2", events.get(1).connectionId);
+
+        // New events follow the migrated ones, and all of them survive the next process.
+        EventQueueManager.queueEvent(context, "callEnded", "after-migration");
+        TestSupport.flushWrites();
+        assertFalse(prefs.contains(LEGACY_KEY));
+
+        EventQueueManager.reopenJournal();
+        events = EventQueueManager.getQueuedEvents(context);
+        assertEquals(3, events.size());
+        assertEquals("legacy-1", events.get(0).connectionId);
+        assertEquals("legacy-2", events.get(1).connectionId);
+        assertEquals("after-migration", events.get(2).connectionId);
+    }
+}
@@ -0,0 +1,108 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Per-event cost of {@link EventQueueManager#getQueuedEvents}, the read behind every flush, as the
+ * queue grows from 100 to 10k events. The old merge compared every in-memory event with every
+ * persisted one, so its per-event cost grew with the queue; the indexed merge should stay flat.
+ * Runs only with {@code -Pbenchmarks}; {@link EventQueueFlushTest} covers what a flush returns.
+ */
+public class EventQueueFlushBenchmark {
+    private static final int SMALL = 100;
+    private static final int LARGE = 10_000;
+    /** Events read per trial, whatever the queue length. */
+    private static final int EVENTS_PER_TRIAL = 1_000_000;
+    private static final int TRIALS = 7;
+
+    private static Context context;
+
+    private int savedCapacity;
+    private EventQueueManager.OverflowPolicy savedPolicy;
+
+    @BeforeClass
+    public static void setUpContext() throws Exception {
+        context = TestSupport.context();
+    }
+
+    @Before
+    public void setUp() {
+        CallClock.setSource(new CallClock.VirtualSource(1_700_000_000_000L));
+        savedCapacity = EventQueueManager.getCapacity();
+        savedPolicy = EventQueueManager.getOverflowPolicy();
+        EventQueueManager.configure(LARGE, EventQueueManager.OverflowPolicy.DROP_OLDEST);
+        EventQueueManager.clearQueue(context);
+        TestSupport.flushWrites();
+    }
+
+    @After
+    public void tearDown() {
+        EventQueueManager.clearQueue(context);
+        EventQueueManager.configure(savedCapacity, savedPolicy);
+        TestSupport.flushWrites();
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+    }
+
+    private static void fillTo(int size) {
+        int queued = EventQueueManager.getQueuedEvents(context).size();
+        while (queued < size) {
+            EventQueueManager.queueEvent(context, "callEnded", "connection-" + queued++);
+        }
+        TestSupport.flushWrites();
+        assertEquals(size, EventQueueManager.getQueuedEvents(context).size());
+    }
+
+    /** Fastest of several trials, which filters out GC pauses and other load on the host. */
+    private static double nanosPerEvent(int size) {
+        int rounds = EVENTS_PER_TRIAL / size;
+        long best = Long.MAX_VALUE;
+        for (int trial = 0; trial < TRIALS; trial++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                List<EventQueueManager.QueuedEvent> events = EventQueueManager.getQueuedEvents(context);
+                if (events.size() != size) {
+                    fail("expected " + size + " events, got " + events.size());
+                }
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / (double) (rounds * size);
+    }
+
+    private static long bytesPerEvent(int size) {
+        int rounds = EVENTS_PER_TRIAL / size;
+        long before = TestSupport.allocatedBytes();
+        for (int i = 0; i < rounds; i++) {
+            EventQueueManager.getQueuedEvents(context);
+        }
+        return (TestSupport.allocatedBytes() - before) / ((long) rounds * size);
+    }
+
+    @Test
+    public void flushCostPerEventStaysFlatAsTheQueueGrows() {
+        fillTo(SMALL);
+        nanosPerEvent(SMALL);
+        double smallNanos = nanosPerEvent(SMALL);
+        long smallBytes = bytesPerEvent(SMALL);
+
+        fillTo(LARGE);
+        nanosPerEvent(LARGE);
+        double largeNanos = nanosPerEvent(LARGE);
+        long largeBytes = bytesPerEvent(LARGE);
+
+        // A quadratic merge would be about LARGE / SMALL = 100 times slower per event.
+        assertTrue("per-event flush cost went from " + smallNanos + "ns to " + largeNanos + "ns",
+            largeNanos < 10 * smallNanos);
+        assertTrue("per-event allocation went from " + smallBytes + " to " + largeBytes + " bytes",
+            largeBytes <= 2 * smallBytes);
+    }
+}
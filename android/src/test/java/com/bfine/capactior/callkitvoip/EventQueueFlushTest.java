@@ -0,0 +1,88 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * What a flush reads from {@link EventQueueManager#getQueuedEvents} and what acknowledging it removes.
+ * {@link EventQueueFlushBenchmark} measures its cost.
+ */
+public class EventQueueFlushTest {
+    private static final int QUEUED = 1_000;
+    private static final int DELIVERED = 100;
+
+    private static Context context;
+
+    private int savedCapacity;
+    private EventQueueManager.OverflowPolicy savedPolicy;
+
+    @BeforeClass
+    public static void setUpContext() throws Exception {
+        context = TestSupport.context();
+    }
+
+    @Before
+    public void setUp() {
+        CallClock.setSource(new CallClock.VirtualSource(1_700_000_000_000L));
+        savedCapacity = EventQueueManager.getCapacity();
+        savedPolicy = EventQueueManager.getOverflowPolicy();
+        EventQueueManager.configure(QUEUED, EventQueueManager.OverflowPolicy.DROP_OLDEST);
+        EventQueueManager.clearQueue(context);
+        TestSupport.flushWrites();
+        for (int i = 0; i < QUEUED; i++) {
+            EventQueueManager.queueEvent(context, "callEnded", "connection-" + i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        EventQueueManager.clearQueue(context);
+        EventQueueManager.configure(savedCapacity, savedPolicy);
+        TestSupport.flushWrites();
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+    }
+
+    @Test
+    public void flushReturnsEventsInQueueOrder() {
+        List<EventQueueManager.QueuedEvent> events = EventQueueManager.getQueuedEvents(context);
+
+        assertEquals(QUEUED, events.size());
+        for (int i = 0; i < QUEUED; i++) {
+            assertEquals("connection-" + i, events.get(i).connectionId);
+            if (i > 0) {
+                assertTrue(events.get(i).sequence > events.get(i - 1).sequence);
+            }
+        }
+    }
+
+    @Test
+    public void acknowledgingAFlushRemovesOnlyTheDeliveredEvents() {
+        List<EventQueueManager.QueuedEvent> events = EventQueueManager.getQueuedEvents(context);
+
+        EventQueueManager.acknowledgeEvents(context, events.subList(0, DELIVERED));
+
+        List<EventQueueManager.QueuedEvent> remaining = EventQueueManager.getQueuedEvents(context);
+        assertEquals(QUEUED - DELIVERED, remaining.size());
+        assertSame(events.get(DELIVERED), remaining.get(0));
+        assertEquals(QUEUED - DELIVERED, ((Number) EventQueueManager.getStats(context).get("queuedCount")).intValue());
+    }
+
+    @Test
+    public void acknowledgingTheSameEventsTwiceRemovesNothingMore() {
+        List<EventQueueManager.QueuedEvent> events = EventQueueManager.getQueuedEvents(context);
+        List<EventQueueManager.QueuedEvent> delivered = events.subList(0, DELIVERED);
+
+        EventQueueManager.acknowledgeEvents(context, delivered);
+        EventQueueManager.acknowledgeEvents(context, delivered);
+
+        assertEquals(QUEUED - DELIVERED, EventQueueManager.getQueuedEvents(context).size());
+    }
+}
@@ -0,0 +1,157 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Overflow policies of the bounded {@link EventQueueManager}, and a 10k-event flood under each of
+ * them: the queue, its expiry index and the journal on disk must all stay bounded.
+ */
+public class EventQueueOverflowTest {
+    private static final int CAPACITY = 64;
+    private static final int FLOOD = 10_000;
+
+    private static Context context;
+    private static File journalFile;
+
+    private int savedCapacity;
+    private EventQueueManager.OverflowPolicy savedPolicy;
+
+    @BeforeClass
+    public static void setUpContext() throws Exception {
+        context = TestSupport.context();
+        journalFile = new File(TestSupport.filesDir(), EventJournal.FILE_NAME);
+    }
+
+    @Before
+    public void setUp() {
+        CallClock.setSource(new CallClock.VirtualSource(1_700_000_000_000L));
+        savedCapacity = EventQueueManager.getCapacity();
+        savedPolicy = EventQueueManager.getOverflowPolicy();
+        EventQueueManager.clearQueue(context);
+        TestSupport.flushWrites();
+    }
+
+    @After
+    public void tearDown() {
+        EventQueueManager.clearQueue(context);
+        EventQueueManager.configure(savedCapacity, savedPolicy);
+        TestSupport.flushWrites();
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+    }
+
+    private static long stat(String name) {
+        return ((Number) EventQueueManager.getStats(context).get(name)).longValue();
+    }
+
+    private static void flood(int connections) {
+        for (int i = 0; i < FLOOD; i++) {
+            EventQueueManager.queueEvent(context, i % 2 == 0 ? "callRejected" : "callEnded", "connection-" + (i % connections));
+        }
+        TestSupport.flushWrites();
+    }
+
+    /** Queue, expiry index and journal stay within a constant multiple of the capacity. */
+    private static void assertBounded() {
+        assertTrue(EventQueueManager.getQueuedEvents(context).size() <= CAPACITY);
+        assertTrue("expiry index holds " + EventQueueManager.getExpiryIndexSize(),
+            EventQueueManager.getExpiryIndexSize() <= 2 * CAPACITY + 1);
+        // Live records, plus dead records and tombstones that have not reached the compaction threshold.
+        assertTrue("journal is " + journalFile.length() + " bytes",
+            journalFile.length() <= 4L * CAPACITY * EventJournal.RECORD_SIZE);
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestEvents() {
+        EventQueueManager.configure(CAPACITY, EventQueueManager.OverflowPolicy.DROP_OLDEST);
+        long droppedBefore = stat("droppedCount");
+
+        flood(FLOOD);
+
+        List<EventQueueManager.QueuedEvent> events = EventQueueManager.getQueuedEvents(context);
+        assertEquals(CAPACITY, events.size());
+        assertEquals("connection-" + (FLOOD - CAPACITY), events.get(0).connectionId);
+        assertEquals("connection-" + (FLOOD - 1), events.get(CAPACITY - 1).connectionId);
+        assertEquals(FLOOD - CAPACITY, stat("droppedCount") - droppedBefore);
+        assertBounded();
+    }
+
+    @Test
+    public void dropNewestKeepsTheFirstEvents() {
+        EventQueueManager.configure(CAPACITY, EventQueueManager.OverflowPolicy.DROP_NEWEST);
+        long droppedBefore = stat("droppedCount");
+
+        flood(FLOOD);
+
+        List<EventQueueManager.QueuedEvent> events = EventQueueManager.getQueuedEvents(context);
+        assertEquals(CAPACITY, events.size());
+        assertEquals("connection-0", events.get(0).connectionId);
+        assertEquals("connection-" + (CAPACITY - 1), events.get(CAPACITY - 1).connectionId);
+        assertEquals(FLOOD - CAPACITY, stat("droppedCount") - droppedBefore);
+        assertBounded();
+    }
+
+    @Test
+    public void coalesceKeepsOneEventPerCallBelowCapacity() {
+        EventQueueManager.configure(CAPACITY, EventQueueManager.OverflowPolicy.COALESCE);
+        long coalescedBefore = stat("coalescedCount");
+        long droppedBefore = stat("droppedCount");
+
+        EventQueueManager.queueEvent(context, "callAnswered", "connection-a");
+        EventQueueManager.queueEvent(context, "callRejected", "connection-b");
+        EventQueueManager.queueEvent(context, "callEnded", "connection-a");
+
+        List<EventQueueManager.QueuedEvent> events = EventQueueManager.getQueuedEvents(context);
+        assertEquals(2, events.size());
+        assertEquals("connection-b", events.get(0).connectionId);
+        assertEquals("connection-a", events.get(1).connectionId);
+        assertEquals("callEnded", events.get(1).eventName);
+        assertEquals(1, stat("coalescedCount") - coalescedBefore);
+        assertEquals(0, stat("droppedCount") - droppedBefore);
+    }
+
+    @Test
+    public void coalesceFloodFromFewCallsKeepsTheLatestEventOfEach() {
+        EventQueueManager.configure(CAPACITY, EventQueueManager.OverflowPolicy.COALESCE);
+        long coalescedBefore = stat("coalescedCount");
+        long droppedBefore = stat("droppedCount");
+        int connections = 10;
+
+        flood(connections);
+
+        List<EventQueueManager.QueuedEvent> events = EventQueueManager.getQueuedEvents(context);
+        assertEquals(connections, events.size());
+        for (int i = 0; i < connections; i++) {
+            EventQueueManager.QueuedEvent event = events.get(i);
+            assertEquals("connection-" + i, event.connectionId);
+            assertEquals(i % 2 == 0 ? "callRejected" : "callEnded", event.eventName);
+        }
+        assertEquals(FLOOD - connections, stat("coalescedCount") - coalescedBefore);
+        assertEquals(0, stat("droppedCount") - droppedBefore);
+        assertTrue(journalFile.length() <= 4L * CAPACITY * EventJournal.RECORD_SIZE);
+        assertTrue(EventQueueManager.getExpiryIndexSize() <= 2 * CAPACITY + 1);
+    }
+
+    @Test
+    public void coalesceFloodFromManyCallsEvictsTheOldest() {
+        EventQueueManager.configure(CAPACITY, EventQueueManager.OverflowPolicy.COALESCE);
+        long droppedBefore = stat("droppedCount");
+
+        flood(FLOOD);
+
+        List<EventQueueManager.QueuedEvent> events = EventQueueManager.getQueuedEvents(context);
+        assertEquals(CAPACITY, events.size());
+        assertEquals("connection-" + (FLOOD - CAPACITY), events.get(0).connectionId);
+        assertEquals(FLOOD - CAPACITY, stat("droppedCount") - droppedBefore);
+        assertBounded();
+    }
+}
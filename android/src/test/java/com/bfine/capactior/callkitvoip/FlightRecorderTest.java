@@ -0,0 +1,73 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link FlightRecorder}: the ring keeps the newest records, and a dump taken while another thread
+ * records only shows whole records.
+ */
+public class FlightRecorderTest {
+    private static final int RECORD_KINDS = 4;
+    private static final int DUMPS = 200;
+
+    @Before
+    public void setUp() {
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+    }
+
+    /** Each event is recorded with its own connectionId, so a record mixing two writes is detectable. */
+    private static String connectionIdFor(FlightRecorder.Event event) {
+        return "recorder-" + event.name();
+    }
+
+    @Test
+    public void dumpKeepsOnlyTheNewestRecords() {
+        for (int i = 0; i < 2 * FlightRecorder.getCapacity(); i++) {
+            FlightRecorder.record(FlightRecorder.Event.PUSH_RECEIVED, "recorder-old");
+        }
+        FlightRecorder.record(FlightRecorder.Event.ANSWERED, "recorder-newest");
+
+        String dump = FlightRecorder.dump();
+
+        assertTrue(dump.split("\n").length <= FlightRecorder.getCapacity());
+        assertTrue(dump.contains(" " + Integer.toHexString(FlightRecorder.hash("recorder-newest")) + " ANSWERED\n"));
+    }
+
+    @Test
+    public void concurrentDumpsNeverShowTornRecords() throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean();
+        // One writer cycling through several records: a dump that mixed fields from two of them would
+        // pair an event with another event's connectionId.
+        Thread writer = new Thread(() -> {
+            FlightRecorder.Event[] events = FlightRecorder.Event.values();
+            for (int i = 0; !stop.get(); i = (i + 1) % RECORD_KINDS) {
+                FlightRecorder.record(events[i], connectionIdFor(events[i]));
+            }
+        });
+        writer.start();
+
+        try {
+            for (int i = 0; i < DUMPS; i++) {
+                for (String line : FlightRecorder.dump().split("\n")) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    String[] fields = line.split(" ");
+                    assertEquals(line, 4, fields.length);
+                    FlightRecorder.Event event = FlightRecorder.Event.valueOf(fields[3]);
+                    if (event.ordinal() < RECORD_KINDS) {
+                        assertEquals(line, Integer.toHexString(FlightRecorder.hash(connectionIdFor(event))), fields[2]);
+                    }
+                }
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+}
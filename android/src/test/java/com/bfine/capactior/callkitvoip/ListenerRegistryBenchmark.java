@@ -0,0 +1,87 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * The listener lookup notifyEvent makes for every event, against the reflective lookup it replaced.
+ * Runs only with {@code -Pbenchmarks}.
+ */
+public class ListenerRegistryBenchmark {
+    private static final int LOOKUPS = 200_000;
+    private static final int TRIALS = 5;
+
+    /** Stand-in for Capacitor's Plugin, whose private hasListeners the plugin used to reach by reflection. */
+    static class ReflectedPlugin {
+        private final Map<String, List<Object>> listeners = new HashMap<>();
+
+        ReflectedPlugin() {
+            List<Object> list = new ArrayList<>();
+            list.add(new Object());
+            listeners.put("callAnswered", list);
+        }
+
+        @SuppressWarnings("unused")
+        private boolean hasListeners(String eventName) {
+            List<Object> list = listeners.get(eventName);
+            return list != null && !list.isEmpty();
+        }
+    }
+
+    /** The lookup notifyEvent made before the registry. */
+    private static boolean reflectiveHasListeners(ReflectedPlugin plugin, String eventName) {
+        try {
+            Method method = ReflectedPlugin.class.getDeclaredMethod("hasListeners", String.class);
+            method.setAccessible(true);
+            return (Boolean) method.invoke(plugin, eventName);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void lookupAllocatesNothingAndOutrunsReflection() {
+        ListenerRegistry registry = new ListenerRegistry();
+        registry.add("callAnswered");
+        ReflectedPlugin plugin = new ReflectedPlugin();
+
+        long registryNanos = Long.MAX_VALUE;
+        long reflectiveNanos = Long.MAX_VALUE;
+        long registryBytes = 0;
+        long reflectiveBytes = 0;
+        for (int trial = 0; trial < TRIALS; trial++) {
+            long allocatedBefore = TestSupport.allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (!registry.hasListeners("callAnswered")) {
+                    fail();
+                }
+            }
+            registryNanos = Math.min(registryNanos, System.nanoTime() - start);
+            registryBytes = TestSupport.allocatedBytes() - allocatedBefore;
+
+            allocatedBefore = TestSupport.allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (!reflectiveHasListeners(plugin, "callAnswered")) {
+                    fail();
+                }
+            }
+            reflectiveNanos = Math.min(reflectiveNanos, System.nanoTime() - start);
+            reflectiveBytes = TestSupport.allocatedBytes() - allocatedBefore;
+        }
+
+        // getDeclaredMethod copies the Method and invoke boxes its argument array on every lookup.
+        assertTrue("registry allocated " + registryBytes + " bytes", registryBytes < LOOKUPS / 100);
+        assertTrue("reflection allocated " + reflectiveBytes + " bytes", reflectiveBytes > 50L * LOOKUPS);
+        assertTrue("registry " + registryNanos + "ns vs reflection " + reflectiveNanos + "ns",
+            registryNanos * 3 < reflectiveNanos);
+    }
+}
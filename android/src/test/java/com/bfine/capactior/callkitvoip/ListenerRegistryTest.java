@@ -0,0 +1,87 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/** {@link ListenerRegistry}: per-event listener counts kept in step with addListener and removeListener. */
+public class ListenerRegistryTest {
+    @Test
+    public void countsListenersPerEvent() {
+        ListenerRegistry registry = new ListenerRegistry();
+        assertFalse(registry.hasListeners("callAnswered"));
+
+        registry.add("callAnswered");
+        registry.add("callAnswered");
+        registry.remove("callAnswered");
+        assertTrue(registry.hasListeners("callAnswered"));
+        assertFalse(registry.hasListeners("callRejected"));
+
+        registry.remove("callAnswered");
+        assertFalse(registry.hasListeners("callAnswered"));
+    }
+
+    @Test
+    public void extraRemovesNeverDriveTheCountNegative() {
+        ListenerRegistry registry = new ListenerRegistry();
+        registry.remove("callEnded");
+        registry.add("callEnded");
+        registry.remove("callEnded");
+        registry.remove("callEnded");
+
+        registry.add("callEnded");
+        assertTrue(registry.hasListeners("callEnded"));
+    }
+
+    @Test
+    public void clearForgetsEveryEvent() {
+        ListenerRegistry registry = new ListenerRegistry();
+        registry.add("callAnswered");
+        registry.add("callRejected");
+
+        registry.clear();
+
+        assertFalse(registry.hasListeners("callAnswered"));
+        assertFalse(registry.hasListeners("callRejected"));
+    }
+
+    @Test
+    public void concurrentAddsAndRemovesBalance() throws Exception {
+        final ListenerRegistry registry = new ListenerRegistry();
+        final int threads = 8;
+        final int perThread = 10_000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    registry.add("callAnswered");
+                    registry.add("callAnswered");
+                    registry.remove("callAnswered");
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        for (int i = 0; i < threads * perThread - 1; i++) {
+            registry.remove("callAnswered");
+        }
+        assertTrue(registry.hasListeners("callAnswered"));
+        registry.remove("callAnswered");
+        assertFalse(registry.hasListeners("callAnswered"));
+    }
+}
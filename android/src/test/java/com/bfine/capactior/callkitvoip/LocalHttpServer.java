@@ -0,0 +1,410 @@
+package com.bfine.capactior.callkitvoip;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Stand-in for the reject backend: a small HTTP/1.1 server on a loopback port that records every
+ * request and answers according to a script. Each response can be delayed, replaced by a
+ * connection reset, or have its body trickled out in chunks. Connections are kept alive like a real
+ * backend, so tests can also count how many the client opened. {@link #https()} serves the same over
+ * TLS with a throwaway self-signed certificate and also counts handshakes; clients trust it through
+ * {@link #clientSocketFactory()}.
+ */
+class LocalHttpServer implements Closeable {
+
+    /** How the server answers one request. */
+    static final class Behavior {
+        final int status;
+        final long latencyMs;
+        final boolean reset;
+        final byte[] body;
+        final int chunkSize;
+        final long chunkDelayMs;
+        final CountDownLatch release;
+
+        private Behavior(int status, long latencyMs, boolean reset, byte[] body, int chunkSize, long chunkDelayMs,
+                         CountDownLatch release) {
+            this.status = status;
+            this.latencyMs = latencyMs;
+            this.reset = reset;
+            this.body = body;
+            this.chunkSize = chunkSize;
+            this.chunkDelayMs = chunkDelayMs;
+            this.release = release;
+        }
+
+        static Behavior status(int status) {
+            return new Behavior(status, 0, false, new byte[0], 0, 0, null);
+        }
+
+        /** Reads the request and then resets the connection instead of answering. */
+        static Behavior reset() {
+            return new Behavior(0, 0, true, new byte[0], 0, 0, null);
+        }
+
+        /** Waits latencyMs after reading the request before answering. */
+        Behavior withLatency(long latencyMs) {
+            return new Behavior(status, latencyMs, reset, body, chunkSize, chunkDelayMs, release);
+        }
+
+        /** Holds the answer until release has been counted down, so a test decides when it is sent. */
+        Behavior heldUntil(CountDownLatch release) {
+            return new Behavior(status, latencyMs, reset, body, chunkSize, chunkDelayMs, release);
+        }
+
+        Behavior withBody(byte[] body) {
+            return new Behavior(status, latencyMs, reset, body, 0, 0, release);
+        }
+
+        /** Sends body chunkSize bytes at a time, pausing chunkDelayMs before each chunk. */
+        Behavior withSlowBody(byte[] body, int chunkSize, long chunkDelayMs) {
+            return new Behavior(status, latencyMs, reset, body, chunkSize, chunkDelayMs, release);
+        }
+    }
+
+    static final class RecordedRequest {
+        final String method;
+        /** Path and query exactly as sent, still percent-encoded. */
+        final String path;
+        /** Header names are lower-cased. */
+        final Map<String, String> headers;
+        /** 1-based number of the connection the request arrived on. */
+        final int connection;
+        /** {@link System#nanoTime()} when the request had been read, before any injected latency. */
+        final long receivedAtNanos;
+
+        RecordedRequest(String method, String path, Map<String, String> headers, int connection, long receivedAtNanos) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.connection = connection;
+            this.receivedAtNanos = receivedAtNanos;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private static final String KEY_ALIAS = "localhost";
+    private static final char[] KEY_PASSWORD = "localhost".toCharArray();
+    private static KeyStore keyStore;
+
+    private final ServerSocket serverSocket;
+    private final boolean tls;
+    private final ExecutorService threads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "LocalHttpServer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ConcurrentLinkedQueue<Behavior> script = new ConcurrentLinkedQueue<>();
+    private volatile Behavior defaultBehavior = Behavior.status(204);
+    private final List<RecordedRequest> requests = new CopyOnWriteArrayList<>();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private final List<Exception> errors = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger handshakeCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    LocalHttpServer() throws IOException {
+        this(new ServerSocket(0, 128, InetAddress.getLoopbackAddress()), false);
+    }
+
+    private LocalHttpServer(ServerSocket serverSocket, boolean tls) {
+        this.serverSocket = serverSocket;
+        this.tls = tls;
+        threads.execute(this::acceptLoop);
+    }
+
+    /** The same server behind TLS, with a certificate for 127.0.0.1 that only {@link #clientSocketFactory()} trusts. */
+    static LocalHttpServer https() throws IOException {
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore(), KEY_PASSWORD);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            return new LocalHttpServer(context.getServerSocketFactory().createServerSocket(0, 128, InetAddress.getLoopbackAddress()), true);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** A socket factory that trusts {@link #https()} servers, for HttpsURLConnection.setDefaultSSLSocketFactory. */
+    static SSLSocketFactory clientSocketFactory() throws IOException {
+        try {
+            KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+            trusted.load(null, null);
+            trusted.setCertificateEntry(KEY_ALIAS, keyStore().getCertificate(KEY_ALIAS));
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(trusted);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers.getTrustManagers(), null);
+            return context.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Generates the self-signed key pair once per test run with the JDK's keytool. */
+    private static synchronized KeyStore keyStore() throws IOException, GeneralSecurityException {
+        if (keyStore == null) {
+            File dir = Files.createTempDirectory("callkitvoip-tls").toFile();
+            File file = new File(dir, "localhost.p12");
+            String password = new String(KEY_PASSWORD);
+            Process keytool = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+                "-genkeypair", "-alias", KEY_ALIAS, "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "san=ip:127.0.0.1,dns:localhost", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", file.getPath(), "-storepass", password, "-keypass", password)
+                .redirectErrorStream(true)
+                .start();
+            String output = new String(readAll(keytool.getInputStream()), StandardCharsets.UTF_8);
+            try {
+                if (keytool.waitFor() != 0) {
+                    throw new IOException("keytool failed: " + output);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            try (InputStream in = new FileInputStream(file)) {
+                store.load(in, KEY_PASSWORD);
+            }
+            file.delete();
+            dir.delete();
+            keyStore = store;
+        }
+        return keyStore;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    String baseUrl() {
+        return (tls ? "https" : "http") + "://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /** Queues behaviors for the next requests, in order; once they run out the default applies. */
+    void enqueue(Behavior... behaviors) {
+        Collections.addAll(script, behaviors);
+    }
+
+    void setDefault(Behavior behavior) {
+        defaultBehavior = behavior;
+    }
+
+    List<RecordedRequest> getRequests() {
+        return new ArrayList<>(requests);
+    }
+
+    int getRequestCount() {
+        return requests.size();
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /** TLS handshakes completed, full or resumed; always 0 for a plain HTTP server. */
+    int getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    /** Closes every open connection, as a backend does with idle keep-alive connections. */
+    void closeConnections() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    /** Stops the server; fails if it hit an error while serving, since the test saw a broken backend. */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        threads.shutdownNow();
+        if (!errors.isEmpty()) {
+            AssertionError failure = new AssertionError("LocalHttpServer failed while serving " + errors.size() + " connection(s)");
+            for (Exception error : errors) {
+                failure.addSuppressed(error);
+            }
+            throw failure;
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                sockets.add(socket);
+                int connection = connectionCount.incrementAndGet();
+                threads.execute(() -> serve(socket, connection));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket, int connection) {
+        try {
+            if (tls) {
+                ((SSLSocket) socket).startHandshake();
+                handshakeCount.incrementAndGet();
+            }
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (!closed) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                if (requestLine.isEmpty()) {
+                    continue;
+                }
+                String[] parts = requestLine.split(" ");
+                Map<String, String> headers = readHeaders(in);
+                skipBody(in, headers);
+                requests.add(new RecordedRequest(parts[0], parts.length > 1 ? parts[1] : "", headers, connection, System.nanoTime()));
+
+                Behavior behavior = script.poll();
+                if (behavior == null) {
+                    behavior = defaultBehavior;
+                }
+                if (behavior.latencyMs > 0) {
+                    Thread.sleep(behavior.latencyMs);
+                }
+                if (behavior.release != null) {
+                    behavior.release.await();
+                }
+                if (behavior.reset) {
+                    socket.setSoLinger(true, 0);
+                    socket.close();
+                    return;
+                }
+                respond(out, parts[0], behavior);
+                if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                    return;
+                }
+            }
+        } catch (SocketException e) {
+            // Client went away or the server is closing.
+        } catch (IOException | InterruptedException e) {
+            if (!closed) {
+                errors.add(e);
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            sockets.remove(socket);
+        }
+    }
+
+    private static void respond(OutputStream out, String method, Behavior behavior) throws IOException, InterruptedException {
+        String head = "HTTP/1.1 " + behavior.status + " Test\r\n"
+            + "Content-Length: " + behavior.body.length + "\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "\r\n";
+        out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        if ("HEAD".equals(method) || behavior.status == 204 || behavior.status == 304) {
+            return;
+        }
+        if (behavior.chunkSize <= 0) {
+            out.write(behavior.body);
+            out.flush();
+            return;
+        }
+        for (int offset = 0; offset < behavior.body.length; offset += behavior.chunkSize) {
+            Thread.sleep(behavior.chunkDelayMs);
+            out.write(behavior.body, offset, Math.min(behavior.chunkSize, behavior.body.length - offset));
+            out.flush();
+        }
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static void skipBody(InputStream in, Map<String, String> headers) throws IOException {
+        String length = headers.get("content-length");
+        long remaining = length != null ? Long.parseLong(length) : 0;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    return;
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /** Reads a CRLF-terminated line, or returns null at end of stream. */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(b);
+        }
+        return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+    }
+}
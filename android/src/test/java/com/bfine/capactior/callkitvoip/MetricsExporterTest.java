@@ -0,0 +1,77 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** {@link MetricsExporter}: reconfiguring the sinks hands pending records to the new sinks. */
+public class MetricsExporterTest {
+    /** Keeps every exported record; exported is released by the first non-empty batch. */
+    private static final class RecordingSink implements MetricsSink {
+        final List<Map<String, Object>> records = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch exported = new CountDownLatch(1);
+
+        @Override
+        public void export(List<Map<String, Object>> completedCalls, Map<String, Map<String, Object>> histograms) {
+            records.addAll(completedCalls);
+            exported.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("no batch exported", exported.await(TestSupport.FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Before
+    public void setUp() {
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+    }
+
+    @After
+    public void tearDown() {
+        MetricsExporter.replaceSinks(Collections.<MetricsSink>emptyList(), RecordingSink.class);
+    }
+
+    private static Map<String, Object> callRecord(String connectionId) {
+        Map<String, Object> record = new HashMap<>();
+        record.put("connectionId", connectionId);
+        return record;
+    }
+
+    @Test
+    public void pendingRecordsSurviveASinkSwap() throws Exception {
+        RecordingSink before = new RecordingSink();
+        RecordingSink after = new RecordingSink();
+        MetricsExporter.replaceSinks(Collections.<MetricsSink>singletonList(before), RecordingSink.class);
+        Map<String, Object> pending = callRecord("metrics-swap");
+        MetricsExporter.enqueue(pending);
+
+        MetricsExporter.replaceSinks(Collections.<MetricsSink>singletonList(after), RecordingSink.class);
+        MetricsExporter.flush();
+        after.await();
+
+        assertTrue(after.records.contains(pending));
+        assertTrue(before.records.isEmpty());
+    }
+
+    @Test
+    public void removingTheLastSinkDisablesCollection() {
+        RecordingSink sink = new RecordingSink();
+        MetricsExporter.replaceSinks(Collections.<MetricsSink>singletonList(sink), RecordingSink.class);
+        assertTrue(MetricsExporter.isEnabled());
+
+        MetricsExporter.replaceSinks(Collections.<MetricsSink>emptyList(), RecordingSink.class);
+
+        assertFalse(MetricsExporter.isEnabled());
+    }
+}
@@ -0,0 +1,193 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import com.bfine.capactior.callkitvoip.LocalHttpServer.Behavior;
+import com.bfine.capactior.callkitvoip.LocalHttpServer.RecordedRequest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * {@link CallKitVoipPlugin#notifyRejectToBackend} end to end, from the native reject paths to the
+ * request the backend sees, with {@link LocalHttpServer} standing in for the backend.
+ */
+public class NotifyRejectToBackendTest {
+    private static final long TIMEOUT_MS = 10_000;
+    /** Keeps channel ids unique across tests, since claims in {@link RejectDeduplicator} outlive a test. */
+    private static final AtomicInteger callCounter = new AtomicInteger();
+
+    private static Context context;
+
+    private LocalHttpServer server;
+
+    @BeforeClass
+    public static void setUpContext() throws Exception {
+        context = TestSupport.context();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+        server = new LocalHttpServer();
+        CallKitVoipPlugin.setRejectTemplate(TestSupport.template(server));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CallKitVoipPlugin.setRejectTemplate(null);
+        server.close();
+    }
+
+    private static CallConfig newCall(String channelId) {
+        return new CallConfig("call-" + channelId, "audio", "60", "42", "call", "voice", channelId);
+    }
+
+    private static String nextChannelId() {
+        return "PJSIP/1280_" + String.format("%08x", callCounter.incrementAndGet());
+    }
+
+    private static String encodedPath(String channelId) {
+        return "/api/voip/" + channelId.replace("/", "%2F") + "/drop";
+    }
+
+    @Test
+    public void rejectReachesBackendWithEncodedChannelIdAndHeaders() throws Exception {
+        String channelId = nextChannelId();
+
+        CallKitVoipPlugin.notifyRejectToBackend(context, "connection-" + channelId, newCall(channelId));
+        TestSupport.awaitBackendIdle();
+
+        assertEquals(1, server.getRequestCount());
+        RecordedRequest recorded = server.getRequests().get(0);
+        assertEquals("DELETE", recorded.method);
+        assertEquals(encodedPath(channelId), recorded.path);
+        assertEquals("Bearer test-token", recorded.header("Authorization"));
+        assertEquals("acme", recorded.header("X-Tenant"));
+        assertNotNull(recorded.header(RejectCallNotifier.IDEMPOTENCY_HEADER));
+    }
+
+    @Test
+    public void callerIsNotBlockedBySlowBackend() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        server.setDefault(Behavior.status(204).heldUntil(release));
+        final String channelId = nextChannelId();
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> notify = caller.submit(new Runnable() {
+                @Override
+                public void run() {
+                    CallKitVoipPlugin.notifyRejectToBackend(context, "connection-" + channelId, newCall(channelId));
+                }
+            });
+
+            // The backend has not answered yet, so a caller that waited for it would still be blocked.
+            notify.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertEquals(1, release.getCount());
+        } finally {
+            release.countDown();
+            caller.shutdownNow();
+        }
+        TestSupport.awaitBackendIdle();
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void everyRejectPathOfACallSendsOneRequest() throws Exception {
+        String channelId = nextChannelId();
+        String connectionId = "connection-" + channelId;
+        long duplicatesBefore = RejectDeduplicator.getDuplicateCount();
+
+        CallKitVoipPlugin.notifyRejectToBackend(context, connectionId, newCall(channelId));
+        CallKitVoipPlugin.notifyRejectToBackend(context, connectionId, newCall(channelId));
+        CallKitVoipPlugin.notifyRejectToBackend(context, newCall(channelId));
+        TestSupport.awaitBackendIdle();
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(duplicatesBefore + 2, RejectDeduplicator.getDuplicateCount());
+    }
+
+    @Test
+    public void unconfiguredBackendIsSkipped() throws Exception {
+        CallKitVoipPlugin.setRejectTemplate(null);
+        String channelId = nextChannelId();
+
+        CallKitVoipPlugin.notifyRejectToBackend(context, "connection-" + channelId, newCall(channelId));
+        TestSupport.awaitBackendIdle();
+
+        assertEquals(0, server.getRequestCount());
+    }
+
+    /**
+     * 50 calls rejected at once, each through all three reject paths, against a backend that takes
+     * 20ms per request: one request per call, every channel id intact, on no more connections than
+     * the backend pool has threads.
+     */
+    @Test
+    public void concurrentRejectsUnderLoad() throws Exception {
+        final int calls = 50;
+        server.setDefault(Behavior.status(204).withLatency(20));
+        final List<String> channelIds = new ArrayList<>();
+        for (int i = 0; i < calls; i++) {
+            channelIds.add(nextChannelId());
+        }
+        long deliveredBefore = ((Number) RejectOutbox.getStats().get("deliveredRejects")).longValue();
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(12);
+        try {
+            for (int path = 0; path < 3; path++) {
+                for (final String channelId : channelIds) {
+                    callers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                go.await();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            CallKitVoipPlugin.notifyRejectToBackend(context, "connection-" + channelId, newCall(channelId));
+                        }
+                    });
+                }
+            }
+            go.countDown();
+            callers.shutdown();
+            assertTrue(callers.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            callers.shutdownNow();
+        }
+        TestSupport.awaitBackendIdle();
+
+        assertEquals(calls, server.getRequestCount());
+        assertEquals(calls, ((Number) RejectOutbox.getStats().get("deliveredRejects")).longValue() - deliveredBefore);
+        Set<String> expectedPaths = new HashSet<>();
+        for (String channelId : channelIds) {
+            expectedPaths.add(encodedPath(channelId));
+        }
+        Set<String> paths = new HashSet<>();
+        Set<String> keys = new HashSet<>();
+        for (RecordedRequest recorded : server.getRequests()) {
+            paths.add(recorded.path);
+            keys.add(recorded.header(RejectCallNotifier.IDEMPOTENCY_HEADER));
+            assertEquals("Bearer test-token", recorded.header("Authorization"));
+        }
+        assertEquals(expectedPaths, paths);
+        assertEquals(calls, keys.size());
+        assertTrue(server.getConnectionCount() <= BackendExecutor.MAX_THREADS);
+    }
+}
@@ -0,0 +1,209 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import com.bfine.capactior.callkitvoip.LocalHttpServer.Behavior;
+import com.bfine.capactior.callkitvoip.LocalHttpServer.RecordedRequest;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Drives {@link RejectCallNotifier} against {@link LocalHttpServer} over real sockets. */
+public class RejectCallNotifierTest {
+    private LocalHttpServer server;
+    private RejectRequestTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+        server = new LocalHttpServer();
+        template = TestSupport.template(server);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+        server.close();
+    }
+
+    private RejectCallNotifier.Result execute(RejectCallNotifier.Request request) {
+        return RejectCallNotifier.execute(request, CircuitBreaker.forKey(request.baseUrl));
+    }
+
+    @Test
+    public void sendsDeleteWithEncodedChannelIdAndHeaders() throws Exception {
+        RejectCallNotifier.Request request = template.newRequest("PJSIP/1280_00000a1b");
+
+        assertEquals(RejectCallNotifier.Result.DELIVERED, execute(request));
+
+        RecordedRequest recorded = server.getRequests().get(0);
+        assertEquals("DELETE", recorded.method);
+        assertEquals("/api/voip/PJSIP%2F1280_00000a1b/drop", recorded.path);
+        assertEquals("Bearer test-token", recorded.header("Authorization"));
+        assertEquals("acme", recorded.header("X-Tenant"));
+        assertEquals(request.idempotencyKey, recorded.header(RejectCallNotifier.IDEMPOTENCY_HEADER));
+    }
+
+    @Test
+    public void classifiesBackendAnswers() throws Exception {
+        server.enqueue(Behavior.status(200).withBody("ok".getBytes("UTF-8")), Behavior.status(404), Behavior.status(409),
+            Behavior.status(408), Behavior.status(429), Behavior.status(503),
+            // HttpURLConnection silently retries once when a pooled connection fails, so reset both tries.
+            Behavior.reset(), Behavior.reset());
+
+        assertEquals(RejectCallNotifier.Result.DELIVERED, execute(template.newRequest("200")));
+        assertEquals(RejectCallNotifier.Result.REJECTED, execute(template.newRequest("404")));
+        assertEquals(RejectCallNotifier.Result.REJECTED, execute(template.newRequest("409")));
+        assertEquals(RejectCallNotifier.Result.FAILED, execute(template.newRequest("408")));
+        assertEquals(RejectCallNotifier.Result.FAILED, execute(template.newRequest("429")));
+        assertEquals(RejectCallNotifier.Result.FAILED, execute(template.newRequest("503")));
+        assertEquals(RejectCallNotifier.Result.FAILED, execute(template.newRequest("reset")));
+    }
+
+    @Test
+    public void rejectLatencyFollowsBackendLatency() throws Exception {
+        server.setDefault(Behavior.status(204).withLatency(200));
+
+        long start = System.nanoTime();
+        assertEquals(RejectCallNotifier.Result.DELIVERED, execute(template.newRequest("slow")));
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000L;
+
+        assertTrue("took " + elapsedMs + "ms", elapsedMs >= 200);
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < 200 + 2000);
+    }
+
+    @Test
+    public void slowBodyIsReadToTheEndAndConnectionReused() throws Exception {
+        byte[] body = new byte[2000];
+        Arrays.fill(body, (byte) 'x');
+        server.enqueue(Behavior.status(200).withSlowBody(body, 250, 25));
+
+        long start = System.nanoTime();
+        assertEquals(RejectCallNotifier.Result.DELIVERED, execute(template.newRequest("1")));
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000L;
+        assertEquals(RejectCallNotifier.Result.DELIVERED, execute(template.newRequest("2")));
+
+        assertTrue("took " + elapsedMs + "ms", elapsedMs >= 8 * 25);
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void sequentialRejectsShareOneConnection() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            assertEquals(RejectCallNotifier.Result.DELIVERED, execute(template.newRequest("PJSIP/1280_" + i)));
+        }
+
+        assertEquals(20, server.getRequestCount());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void sequentialRejectsOverTlsShareOneHandshake() throws Exception {
+        int rejects = 20;
+        SSLSocketFactory defaultFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        LocalHttpServer httpsServer = LocalHttpServer.https();
+        LocalHttpServer legacyServer = LocalHttpServer.https();
+        try {
+            HttpsURLConnection.setDefaultSSLSocketFactory(LocalHttpServer.clientSocketFactory());
+
+            RejectRequestTemplate httpsTemplate = TestSupport.template(httpsServer);
+            for (int i = 0; i < rejects; i++) {
+                assertEquals(RejectCallNotifier.Result.DELIVERED, execute(httpsTemplate.newRequest("PJSIP/1280_" + i)));
+            }
+            assertEquals(rejects, httpsServer.getRequestCount());
+            assertEquals(1, httpsServer.getConnectionCount());
+            assertEquals(1, httpsServer.getHandshakeCount());
+
+            // The notifier before the shared client called disconnect() after every reject, which closes
+            // the socket on Android. The host JDK pools it anyway, so ask for the close explicitly.
+            RejectRequestTemplate legacyTemplate = TestSupport.template(legacyServer);
+            for (int i = 0; i < rejects; i++) {
+                HttpURLConnection conn = (HttpURLConnection) new URL(legacyTemplate.newRequest("PJSIP/1280_" + i).url).openConnection();
+                conn.setRequestMethod("DELETE");
+                conn.setRequestProperty("Connection", "close");
+                assertEquals(204, conn.getResponseCode());
+                conn.disconnect();
+            }
+            assertEquals(rejects, legacyServer.getHandshakeCount());
+        } finally {
+            HttpsURLConnection.setDefaultSSLSocketFactory(defaultFactory);
+            httpsServer.close();
+            legacyServer.close();
+        }
+    }
+
+    @Test
+    public void concurrentRejectsKeepEveryChannelIdIntact() throws Exception {
+        server.setDefault(Behavior.status(204).withLatency(5));
+        ExecutorService callers = Executors.newFixedThreadPool(16);
+        List<Future<RejectCallNotifier.Result>> results = new ArrayList<>();
+        Set<String> expectedPaths = new HashSet<>();
+        Set<String> expectedKeys = new HashSet<>();
+        try {
+            for (int i = 0; i < 100; i++) {
+                final RejectCallNotifier.Request request = template.newRequest("PJSIP/1280_" + i + " a+b/ü");
+                expectedPaths.add("/api/voip/PJSIP%2F1280_" + i + "%20a%2Bb%2F%C3%BC/drop");
+                expectedKeys.add(request.idempotencyKey);
+                results.add(callers.submit(new Callable<RejectCallNotifier.Result>() {
+                    @Override
+                    public RejectCallNotifier.Result call() {
+                        return execute(request);
+                    }
+                }));
+            }
+            for (Future<RejectCallNotifier.Result> result : results) {
+                assertEquals(RejectCallNotifier.Result.DELIVERED, result.get());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+
+        Set<String> paths = new HashSet<>();
+        Set<String> keys = new HashSet<>();
+        for (RecordedRequest recorded : server.getRequests()) {
+            paths.add(recorded.path);
+            keys.add(recorded.header(RejectCallNotifier.IDEMPOTENCY_HEADER));
+            assertEquals("Bearer test-token", recorded.header("Authorization"));
+        }
+        assertEquals(expectedPaths, paths);
+        assertEquals(expectedKeys, keys);
+    }
+
+    @Test
+    public void repeatedFailuresOpenTheCircuitUntilATrialSucceeds() throws Exception {
+        CallClock.VirtualSource clock = new CallClock.VirtualSource(1_700_000_000_000L);
+        CallClock.setSource(clock);
+        server.setDefault(Behavior.status(503));
+        CircuitBreaker breaker = CircuitBreaker.forKey(template.baseUrl);
+
+        for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+            assertTrue(breaker.tryAcquire());
+            assertEquals(RejectCallNotifier.Result.FAILED, RejectCallNotifier.execute(template.newRequest("x"), breaker));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        clock.advanceMillis(CircuitBreaker.OPEN_DURATION_MS);
+        server.setDefault(Behavior.status(204));
+        assertTrue(breaker.tryAcquire());
+        assertEquals(RejectCallNotifier.Result.DELIVERED, RejectCallNotifier.execute(template.newRequest("x"), breaker));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(CircuitBreaker.MIN_CALLS + 1, server.getRequestCount());
+    }
+}
@@ -0,0 +1,115 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import com.bfine.capactior.callkitvoip.LocalHttpServer.RecordedRequest;
+
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link RejectEndpointPrewarmer}: the warm-up reaches the reject endpoint's origin with the configured
+ * headers, and the reject latency is filed as warm or cold by whether the DELETE reused a connection.
+ */
+public class RejectEndpointPrewarmerTest {
+    private Context context;
+    private SSLSocketFactory defaultFactory;
+    private LocalHttpServer server;
+    private RejectRequestTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+        context = TestSupport.context();
+        defaultFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        HttpsURLConnection.setDefaultSSLSocketFactory(LocalHttpServer.clientSocketFactory());
+        // A fresh server per test, so no earlier exchange has left a pooled connection or a warm mark.
+        server = LocalHttpServer.https();
+        template = RejectRequestTemplate.compile(server.baseUrl() + "/backend", "/api/voip/{channel_id}/drop",
+            "test-token", "{\"X-Tenant\":\"acme\"}");
+        CallKitVoipPlugin.setRejectTemplate(template);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CallKitVoipPlugin.setRejectTemplate(null);
+        HttpsURLConnection.setDefaultSSLSocketFactory(defaultFactory);
+        server.close();
+    }
+
+    private static long rejectSendCount(String histogram) {
+        Map<String, Object> snapshot = CallQualityMonitor.getLatencyHistograms().get(histogram);
+        return ((Number) snapshot.get("count")).longValue();
+    }
+
+    private void reject(String channelId) {
+        RejectCallNotifier.Request request = template.newRequest(channelId);
+        assertEquals(RejectCallNotifier.Result.DELIVERED,
+            RejectCallNotifier.execute(request, CircuitBreaker.forKey(request.baseUrl)));
+    }
+
+    @Test
+    public void warmUpGoesToTheRejectOriginWithTheConfiguredHeaders() {
+        RejectEndpointPrewarmer.prewarm(context, "prewarm-headers");
+        TestSupport.awaitBackendIdle();
+
+        assertEquals(1, server.getRequestCount());
+        RecordedRequest warmup = server.getRequests().get(0);
+        assertEquals("HEAD", warmup.method);
+        assertEquals("/", warmup.path);
+        assertEquals("Bearer test-token", warmup.header("Authorization"));
+        assertEquals("acme", warmup.header("X-Tenant"));
+        assertNull(warmup.header(RejectCallNotifier.IDEMPOTENCY_HEADER));
+    }
+
+    @Test
+    public void rejectAfterWarmUpReusesItsConnection() {
+        long warmBefore = rejectSendCount("rejectSendWarm");
+        long coldBefore = rejectSendCount("rejectSendCold");
+
+        RejectEndpointPrewarmer.prewarm(context, "prewarm-reused");
+        TestSupport.awaitBackendIdle();
+        reject("PJSIP/1280_warm");
+
+        assertEquals(1, server.getHandshakeCount());
+        assertEquals(1, rejectSendCount("rejectSendWarm") - warmBefore);
+        assertEquals(0, rejectSendCount("rejectSendCold") - coldBefore);
+    }
+
+    @Test
+    public void firstRejectWithoutWarmUpIsCold() {
+        long warmBefore = rejectSendCount("rejectSendWarm");
+        long coldBefore = rejectSendCount("rejectSendCold");
+
+        reject("PJSIP/1280_first");
+        reject("PJSIP/1280_second");
+
+        assertEquals(1, server.getHandshakeCount());
+        assertEquals(1, rejectSendCount("rejectSendCold") - coldBefore);
+        assertEquals(1, rejectSendCount("rejectSendWarm") - warmBefore);
+    }
+
+    @Test
+    public void rejectAfterTheServerClosedTheConnectionIsColdWithinTheTtl() throws Exception {
+        RejectEndpointPrewarmer.prewarm(context, "prewarm-closed");
+        TestSupport.awaitBackendIdle();
+        server.closeConnections();
+        assertTrue(RejectEndpointPrewarmer.isWarm(template.baseUrl, CallClock.elapsedMillis()));
+        long warmBefore = rejectSendCount("rejectSendWarm");
+        long coldBefore = rejectSendCount("rejectSendCold");
+
+        reject("PJSIP/1280_closed");
+
+        assertEquals(2, server.getHandshakeCount());
+        assertEquals(1, rejectSendCount("rejectSendCold") - coldBefore);
+        assertEquals(0, rejectSendCount("rejectSendWarm") - warmBefore);
+    }
+}
@@ -0,0 +1,242 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import com.bfine.capactior.callkitvoip.LocalHttpServer.Behavior;
+import com.bfine.capactior.callkitvoip.LocalHttpServer.RecordedRequest;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Reject path from the outbox on: outbox file, send on the backend pool, backend answer, retry. */
+public class RejectOutboxTest {
+    private static Context context;
+    private static File outboxDir;
+
+    private LocalHttpServer server;
+    private RejectRequestTemplate template;
+
+    @BeforeClass
+    public static void setUpContext() throws Exception {
+        context = TestSupport.context();
+        outboxDir = new File(TestSupport.filesDir(), "callkit_reject_outbox");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+        server = new LocalHttpServer();
+        template = TestSupport.template(server);
+        CallKitVoipPlugin.setRejectTemplate(template);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CallKitVoipPlugin.setRejectTemplate(null);
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+        server.close();
+    }
+
+    /** Host monotonic time, so timeouts and backoff behave as usual, and a wall clock the test sets. */
+    private static final class SettableWallClock implements CallClock.Source {
+        volatile long wallMillis;
+
+        SettableWallClock(long wallMillis) {
+            this.wallMillis = wallMillis;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return wallMillis;
+        }
+    }
+
+    private RejectCallNotifier.Request enqueue(String channelId) {
+        RejectCallNotifier.Request request = template.newRequest(channelId);
+        RejectOutbox.enqueue(context, channelId, request);
+        return request;
+    }
+
+    private static long stat(String name) {
+        return ((Number) RejectOutbox.getStats().get(name)).longValue();
+    }
+
+    private static File outboxFile(RejectCallNotifier.Request request) {
+        return new File(outboxDir, "reject_" + request.idempotencyKey);
+    }
+
+    /** Sends pending rejects now, skipping their backoff, and waits for the answers. */
+    private static void retryNow() {
+        RejectOutbox.retryPending(context);
+        TestSupport.awaitBackendIdle();
+    }
+
+    /**
+     * Retries until request has left the outbox. A retry may be in flight from its own backoff timer, in
+     * which case retryPending skips it and the round only waits for its answer.
+     */
+    private static void retryUntilRemoved(RejectCallNotifier.Request request) {
+        for (int round = 0; round < RejectOutbox.MAX_ATTEMPTS && outboxFile(request).exists(); round++) {
+            retryNow();
+        }
+        assertFalse("reject still in outbox", outboxFile(request).exists());
+    }
+
+    @Test
+    public void deliveredRejectLeavesNothingBehind() throws Exception {
+        RejectCallNotifier.Request request = enqueue("PJSIP/1280_delivered");
+        TestSupport.awaitBackendIdle();
+
+        assertEquals(1, server.getRequestCount());
+        RecordedRequest recorded = server.getRequests().get(0);
+        assertEquals("/api/voip/PJSIP%2F1280_delivered/drop", recorded.path);
+        assertEquals(request.idempotencyKey, recorded.header(RejectCallNotifier.IDEMPOTENCY_HEADER));
+        assertFalse(outboxFile(request).exists());
+    }
+
+    @Test
+    public void failedRejectIsRetriedWithTheSameKeyUntilDelivered() throws Exception {
+        server.enqueue(Behavior.status(503), Behavior.reset());
+        RejectCallNotifier.Request request = enqueue("PJSIP/1280_retried");
+        TestSupport.awaitBackendIdle();
+        assertTrue(outboxFile(request).exists());
+        retryUntilRemoved(request);
+
+        for (RecordedRequest recorded : server.getRequests()) {
+            assertEquals("/api/voip/PJSIP%2F1280_retried/drop", recorded.path);
+            assertEquals(request.idempotencyKey, recorded.header(RejectCallNotifier.IDEMPOTENCY_HEADER));
+            assertEquals("Bearer test-token", recorded.header("Authorization"));
+        }
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void failedRejectStaysOnDiskUntilDelivered() throws Exception {
+        server.setDefault(Behavior.status(503));
+        RejectCallNotifier.Request request = enqueue("PJSIP/1280_stored");
+        TestSupport.awaitBackendIdle();
+        assertTrue(outboxFile(request).exists());
+
+        server.setDefault(Behavior.status(204));
+        retryUntilRemoved(request);
+    }
+
+    @Test
+    public void rejectRefusedByBackendIsDropped() throws Exception {
+        server.setDefault(Behavior.status(404));
+        RejectCallNotifier.Request request = enqueue("PJSIP/1280_refused");
+        TestSupport.awaitBackendIdle();
+        assertFalse(outboxFile(request).exists());
+        retryNow();
+
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void storedRejectHoldsNoHeadersOrToken() throws Exception {
+        server.setDefault(Behavior.status(503));
+        RejectCallNotifier.Request request = enqueue("PJSIP/1280_secret");
+        TestSupport.awaitBackendIdle();
+
+        String stored = new String(Files.readAllBytes(outboxFile(request).toPath()), StandardCharsets.UTF_8);
+        assertTrue(stored, stored.contains("PJSIP\\/1280_secret") || stored.contains("PJSIP/1280_secret"));
+        assertFalse(stored, stored.contains("test-token"));
+        assertFalse(stored, stored.contains("Authorization"));
+        assertFalse(stored, stored.contains("acme"));
+
+        server.setDefault(Behavior.status(204));
+        retryUntilRemoved(request);
+    }
+
+    @Test
+    public void retriesUseTheCurrentConfig() throws Exception {
+        server.enqueue(Behavior.status(503));
+        RejectCallNotifier.Request request = enqueue("PJSIP/1280_rotated");
+        TestSupport.awaitBackendIdle();
+
+        CallKitVoipPlugin.setRejectTemplate(RejectRequestTemplate.compile(server.baseUrl(), "/api/voip/{channel_id}/drop",
+            "rotated-token", null));
+        retryUntilRemoved(request);
+
+        List<RecordedRequest> requests = server.getRequests();
+        RecordedRequest last = requests.get(requests.size() - 1);
+        assertEquals("Bearer rotated-token", last.header("Authorization"));
+        assertNull(last.header("X-Tenant"));
+        assertEquals(request.idempotencyKey, last.header(RejectCallNotifier.IDEMPOTENCY_HEADER));
+    }
+
+    @Test
+    public void pendingRejectIsDroppedOnceTheConfigIsCleared() throws Exception {
+        server.setDefault(Behavior.status(503));
+        RejectCallNotifier.Request request = enqueue("PJSIP/1280_unconfigured");
+        TestSupport.awaitBackendIdle();
+        int sent = server.getRequestCount();
+
+        CallKitVoipPlugin.setRejectTemplate(null);
+        retryUntilRemoved(request);
+
+        assertEquals(sent, server.getRequestCount());
+    }
+
+    @Test
+    public void firstSendDoesNotWaitForTheOutboxWrite() throws Exception {
+        // Hold the persistence thread: the send must still go out.
+        final CountDownLatch release = new CountDownLatch(1);
+        PersistenceExecutor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        RejectCallNotifier.Request request;
+        try {
+            request = enqueue("PJSIP/1280_unwritten");
+            assertTrue(BackendExecutor.awaitIdle(TestSupport.FLUSH_TIMEOUT_MS));
+            assertEquals(1, server.getRequestCount());
+        } finally {
+            release.countDown();
+        }
+        TestSupport.awaitBackendIdle();
+
+        assertFalse(outboxFile(request).exists());
+    }
+
+    @Test
+    public void wallClockSetBackDoesNotKeepARejectPastItsMaxAge() throws Exception {
+        long start = 1_700_000_000_000L;
+        SettableWallClock clock = new SettableWallClock(start);
+        CallClock.setSource(clock);
+        server.setDefault(Behavior.status(503));
+        long abandonedBefore = stat("abandonedRejects");
+
+        RejectCallNotifier.Request request = enqueue("PJSIP/1280_clock");
+        TestSupport.awaitBackendIdle();
+
+        // Set back two days: the age would go negative, so it restarts from here instead.
+        clock.wallMillis = start - 2 * RejectOutbox.MAX_AGE_MS;
+        retryNow();
+        assertTrue(outboxFile(request).exists());
+
+        clock.wallMillis = start - 2 * RejectOutbox.MAX_AGE_MS + RejectOutbox.MAX_AGE_MS + 1;
+        retryNow();
+
+        assertFalse(outboxFile(request).exists());
+        assertEquals(1, stat("abandonedRejects") - abandonedBefore);
+    }
+}
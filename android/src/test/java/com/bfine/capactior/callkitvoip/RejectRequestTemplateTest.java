@@ -0,0 +1,76 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class RejectRequestTemplateTest {
+
+    @Test
+    public void encodesChannelIdAsOnePathSegment() {
+        RejectRequestTemplate template = RejectRequestTemplate.compile("https://api.example.com", "/api/voip/{channel_id}/drop", null, null);
+
+        assertEquals("https://api.example.com/api/voip/PJSIP%2F1280_00000a1b/drop", template.buildUrl("PJSIP/1280_00000a1b"));
+        assertEquals("https://api.example.com/api/voip/a%20b%2Bc%3F%23%25/drop", template.buildUrl("a b+c?#%"));
+        assertEquals("https://api.example.com/api/voip/%C3%BC%E2%82%AC/drop", template.buildUrl("ü€"));
+        assertEquals("https://api.example.com/api/voip//drop", template.buildUrl(null));
+    }
+
+    @Test
+    public void fillsEverySlot() {
+        RejectRequestTemplate template = RejectRequestTemplate.compile("https://api.example.com", "{channel_id}/x/{channel_id}", null, null);
+
+        assertEquals("https://api.example.com/SIP%2F1/x/SIP%2F1", template.buildUrl("SIP/1"));
+    }
+
+    @Test
+    public void normalizesBaseUrlAndPath() {
+        RejectRequestTemplate template = RejectRequestTemplate.compile("  https://api.example.com///  ", "drop/{channel_id}", null, null);
+
+        assertEquals("https://api.example.com", template.baseUrl);
+        assertEquals("https://api.example.com/drop/1", template.buildUrl("1"));
+    }
+
+    @Test
+    public void usesDefaultPathWhenNoneIsSet() {
+        RejectRequestTemplate template = RejectRequestTemplate.compile("https://api.example.com", null, null, null);
+        String expected = "https://api.example.com" + CallKitVoipPlugin.DEFAULT_PATH.replace(RejectRequestTemplate.CHANNEL_ID_SLOT, "PJSIP%2F1");
+
+        assertEquals(expected, template.buildUrl("PJSIP/1"));
+    }
+
+    @Test
+    public void blankBaseUrlHasNoTemplate() {
+        assertNull(RejectRequestTemplate.compile(null, "/x", "token", null));
+        assertNull(RejectRequestTemplate.compile("   ", "/x", "token", null));
+    }
+
+    @Test
+    public void sendsAuthorizationFirstAndConfiguredHeaders() {
+        RejectRequestTemplate template = RejectRequestTemplate.compile("https://api.example.com", null, "secret",
+            "{\"X-Tenant\":\"acme\",\"X-Trace\":\"on\"}");
+        Map<String, String> headers = template.newRequest("1").headers;
+
+        assertEquals("Authorization", headers.keySet().iterator().next());
+        assertEquals("Bearer secret", headers.get("Authorization"));
+        assertEquals("acme", headers.get("X-Tenant"));
+        assertEquals("on", headers.get("X-Trace"));
+        assertEquals(3, headers.size());
+    }
+
+    @Test
+    public void ignoresInvalidHeadersJson() {
+        RejectRequestTemplate template = RejectRequestTemplate.compile("https://api.example.com", null, "secret", "{not json");
+
+        assertEquals(1, template.newRequest("1").headers.size());
+    }
+
+    @Test
+    public void eachRequestGetsItsOwnIdempotencyKey() {
+        RejectRequestTemplate template = RejectRequestTemplate.compile("https://api.example.com", null, null, null);
+
+        assertNotEquals(template.newRequest("1").idempotencyKey, template.newRequest("1").idempotencyKey);
+    }
+}
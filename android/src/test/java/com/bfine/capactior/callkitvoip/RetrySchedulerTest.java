@@ -0,0 +1,212 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link RetryScheduler}: retries run off the caller's thread with jittered backoff, and stop at
+ * maxAttempts, at the deadline, when the call's connectionId is cancelled, or when the process-wide
+ * budget is spent. Deadlines and the budget window follow a {@link CallClock.VirtualSource}.
+ */
+public class RetrySchedulerTest {
+    /** Long enough that a scheduled retry is still pending when the test cancels it. */
+    private static final RetryScheduler.Policy SLOW_POLICY = new RetryScheduler.Policy(10, 60_000, 60_000, 600_000);
+
+    private CallClock.VirtualSource clock;
+
+    @Before
+    public void setUp() {
+        clock = new CallClock.VirtualSource(1_700_000_000_000L);
+        CallClock.setSource(clock);
+        RetryScheduler.resetBudget();
+    }
+
+    @After
+    public void tearDown() {
+        RetryScheduler.resetBudget();
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+    }
+
+    /** Records every callback; done is released by onSuccess or onFailure. */
+    private static final class RecordingCallback implements RetryScheduler.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger retries = new AtomicInteger();
+        volatile boolean succeeded;
+        volatile String failure;
+
+        @Override
+        public void onRetry(int attempt, long delayMs) {
+            retries.incrementAndGet();
+        }
+
+        @Override
+        public void onSuccess() {
+            succeeded = true;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(String reason, Exception lastError) {
+            failure = reason;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("operation did not finish", done.await(TestSupport.FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /** Work that throws on its first {@code failures} attempts, then succeeds, recording the threads it ran on. */
+    private static final class FlakyWork implements Runnable {
+        final int failures;
+        final AtomicInteger attempts = new AtomicInteger();
+        final List<String> threads = new ArrayList<>();
+
+        FlakyWork(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public void run() {
+            synchronized (threads) {
+                threads.add(Thread.currentThread().getName());
+            }
+            if (attempts.incrementAndGet() <= failures) {
+                throw new IllegalStateException("attempt " + attempts.get() + " failed");
+            }
+        }
+    }
+
+    @Test
+    public void failedWorkIsRetriedOnTheRetryThreadUntilItSucceeds() throws Exception {
+        FlakyWork work = new FlakyWork(2);
+        RecordingCallback callback = new RecordingCallback();
+
+        RetryScheduler.run(null, work, new RetryScheduler.Policy(5, 1, 2, 60_000), callback);
+        callback.await();
+
+        assertTrue(callback.succeeded);
+        assertNull(callback.failure);
+        assertEquals(3, work.attempts.get());
+        assertEquals(2, callback.retries.get());
+        assertEquals(Thread.currentThread().getName(), work.threads.get(0));
+        assertEquals("CallKitVoip-Retry", work.threads.get(1));
+        assertEquals("CallKitVoip-Retry", work.threads.get(2));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        FlakyWork work = new FlakyWork(Integer.MAX_VALUE);
+        RecordingCallback callback = new RecordingCallback();
+
+        RetryScheduler.run(null, work, new RetryScheduler.Policy(3, 1, 1, 60_000), callback);
+        callback.await();
+
+        assertEquals(RetryScheduler.FAILURE_MAX_ATTEMPTS, callback.failure);
+        assertEquals(3, work.attempts.get());
+        assertEquals(2, callback.retries.get());
+    }
+
+    @Test
+    public void noRetryStartsAfterTheDeadline() {
+        final RecordingCallback callback = new RecordingCallback();
+
+        RetryScheduler.run(null, () -> {
+            clock.advanceMillis(1_000);
+            throw new IllegalStateException("slow failure");
+        }, new RetryScheduler.Policy(5, 1, 1, 500), callback);
+
+        // Decided on the calling thread: the first attempt alone used up the deadline.
+        assertEquals(RetryScheduler.FAILURE_DEADLINE, callback.failure);
+        assertEquals(0, callback.retries.get());
+    }
+
+    @Test
+    public void cancellingAConnectionIdStopsOnlyItsPendingRetries() {
+        RecordingCallback ended = new RecordingCallback();
+        RecordingCallback other = new RecordingCallback();
+        RetryScheduler.Operation endedOperation =
+            RetryScheduler.run("retry-ended", new FlakyWork(Integer.MAX_VALUE), SLOW_POLICY, ended);
+        RetryScheduler.Operation otherOperation =
+            RetryScheduler.run("retry-other", new FlakyWork(Integer.MAX_VALUE), SLOW_POLICY, other);
+
+        RetryScheduler.cancel("retry-ended");
+
+        assertTrue(endedOperation.isCancelled());
+        assertEquals(RetryScheduler.FAILURE_CANCELLED, ended.failure);
+        assertFalse(otherOperation.isCancelled());
+        assertNull(other.failure);
+
+        otherOperation.cancel();
+        assertEquals(RetryScheduler.FAILURE_CANCELLED, other.failure);
+    }
+
+    @Test
+    public void budgetCapsRetriesPerWindow() {
+        List<RetryScheduler.Operation> operations = new ArrayList<>();
+        for (int i = 0; i < RetryScheduler.RETRY_BUDGET; i++) {
+            RecordingCallback callback = new RecordingCallback();
+            operations.add(RetryScheduler.run("retry-budget", new FlakyWork(Integer.MAX_VALUE), SLOW_POLICY, callback));
+            assertEquals(1, callback.retries.get());
+        }
+
+        RecordingCallback overBudget = new RecordingCallback();
+        RetryScheduler.run("retry-budget", new FlakyWork(Integer.MAX_VALUE), SLOW_POLICY, overBudget);
+        assertEquals(RetryScheduler.FAILURE_BUDGET, overBudget.failure);
+        assertEquals(0, overBudget.retries.get());
+
+        clock.advanceMillis(RetryScheduler.BUDGET_WINDOW_MS);
+        RecordingCallback nextWindow = new RecordingCallback();
+        RetryScheduler.run("retry-budget", new FlakyWork(Integer.MAX_VALUE), SLOW_POLICY, nextWindow);
+        assertEquals(1, nextWindow.retries.get());
+        assertNull(nextWindow.failure);
+
+        RetryScheduler.cancel("retry-budget");
+        for (RetryScheduler.Operation operation : operations) {
+            assertTrue(operation.isCancelled());
+        }
+        assertEquals(RetryScheduler.FAILURE_CANCELLED, nextWindow.failure);
+    }
+
+    @Test
+    public void retriesAreReportedToCallQualityMonitor() {
+        String connectionId = "retry-metrics";
+        CallQualityMonitor.trackCallStart(connectionId);
+        try {
+            RetryScheduler.run(connectionId, new FlakyWork(Integer.MAX_VALUE), SLOW_POLICY, null);
+
+            assertEquals(1, CallQualityMonitor.getCallMetrics(connectionId).get("retryCount"));
+        } finally {
+            RetryScheduler.cancel(connectionId);
+            CallQualityMonitor.clearMetrics(connectionId);
+        }
+    }
+
+    @Test
+    public void delaysAreJitteredWithinTheCappedExponentialBound() {
+        RetryScheduler.Policy policy = new RetryScheduler.Policy(10, 100, 1_000, 60_000);
+        Set<Long> thirdRetryDelays = new HashSet<>();
+        for (int i = 0; i < 1_000; i++) {
+            long first = policy.delayFor(1);
+            long third = policy.delayFor(3);
+            long capped = policy.delayFor(8);
+            assertTrue(first >= 0 && first <= 100);
+            assertTrue(third >= 0 && third <= 400);
+            assertTrue(capped >= 0 && capped <= 1_000);
+            thirdRetryDelays.add(third);
+        }
+        // Full jitter spreads retries over the whole range instead of a fixed 1s * 2^n.
+        assertTrue("only " + thirdRetryDelays.size() + " distinct delays", thirdRetryDelays.size() > 100);
+    }
+}
@@ -0,0 +1,128 @@
+package com.bfine.capactior.callkitvoip;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Shared pieces for the local tests, which run on the host JVM against a stubbed android.jar. */
+final class TestSupport {
+    /**
+     * android.os.SystemClock returns 0 in local unit tests, so time-based logic would never see time
+     * pass. Tests install this clock instead.
+     */
+    static final CallClock.Source HOST_CLOCK = new CallClock.Source() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /** Generous, since a loaded build machine can take seconds to drain thousands of queued writes. */
+    static final long FLUSH_TIMEOUT_MS = 10_000;
+
+    private static File filesDir;
+    private static Context context;
+    private static final Map<String, InMemorySharedPreferences> preferences = new HashMap<>();
+
+    private TestSupport() {
+    }
+
+    /**
+     * One files directory for the whole test run: {@link RejectOutbox} and {@link EventQueueManager}
+     * pick their files on first use and keep them for the life of the process.
+     */
+    static synchronized File filesDir() throws IOException {
+        if (filesDir == null) {
+            filesDir = Files.createTempDirectory("callkitvoip-test").toFile();
+        }
+        return filesDir;
+    }
+
+    /**
+     * A Context that only knows its files directory and in-memory SharedPreferences; system services
+     * are unavailable.
+     */
+    static synchronized Context context() throws IOException {
+        if (context == null) {
+            final File dir = filesDir();
+            context = new ContextWrapper(null) {
+                @Override
+                public File getFilesDir() {
+                    return dir;
+                }
+
+                @Override
+                public Context getApplicationContext() {
+                    return this;
+                }
+
+                @Override
+                public SharedPreferences getSharedPreferences(String name, int mode) {
+                    return preferences(name);
+                }
+
+                @Override
+                public Object getSystemService(String name) {
+                    return null;
+                }
+            };
+        }
+        return context;
+    }
+
+    /** The SharedPreferences file name as seen through {@link #context()}. */
+    static InMemorySharedPreferences preferences(String name) {
+        synchronized (preferences) {
+            InMemorySharedPreferences prefs = preferences.get(name);
+            if (prefs == null) {
+                prefs = new InMemorySharedPreferences();
+                preferences.put(name, prefs);
+            }
+            return prefs;
+        }
+    }
+
+    /** Bytes allocated so far by the calling thread, for allocation benchmarks. */
+    static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Waits until every write queued on {@link PersistenceExecutor} so far has reached disk. */
+    static void flushWrites() {
+        if (!PersistenceExecutor.flush(FLUSH_TIMEOUT_MS)) {
+            throw new AssertionError("Persistence writes did not finish within " + FLUSH_TIMEOUT_MS + "ms");
+        }
+    }
+
+    /**
+     * Waits until the reject paths have gone quiet: writes that start sends, the sends on
+     * {@link BackendExecutor}, and the writes recording their results. Retries waiting out a backoff
+     * are not started.
+     */
+    static void awaitBackendIdle() {
+        flushWrites();
+        if (!BackendExecutor.awaitIdle(FLUSH_TIMEOUT_MS)) {
+            throw new AssertionError("Backend requests did not finish within " + FLUSH_TIMEOUT_MS + "ms");
+        }
+        flushWrites();
+    }
+
+    static RejectRequestTemplate template(LocalHttpServer server) {
+        return RejectRequestTemplate.compile(server.baseUrl(), "/api/voip/{channel_id}/drop", "test-token",
+            "{\"X-Tenant\":\"acme\"}");
+    }
+}
@@ -0,0 +1,139 @@
+package com.bfine.capactior.callkitvoip;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Queue expiry and the ring timeout, driven by a {@link CallClock.VirtualSource}. Both follow the
+ * monotonic clock, so wall-clock jumps (NTP, manual changes) must not move them.
+ */
+public class VirtualClockTimeoutTest {
+    private static final long START_WALL_MILLIS = 1_700_000_000_000L;
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    private static Context context;
+
+    private CallClock.VirtualSource clock;
+    private int savedCapacity;
+    private EventQueueManager.OverflowPolicy savedPolicy;
+
+    @BeforeClass
+    public static void setUpContext() throws Exception {
+        context = TestSupport.context();
+    }
+
+    @Before
+    public void setUp() {
+        clock = new CallClock.VirtualSource(START_WALL_MILLIS);
+        CallClock.setSource(clock);
+        savedCapacity = EventQueueManager.getCapacity();
+        savedPolicy = EventQueueManager.getOverflowPolicy();
+        EventQueueManager.clearQueue(context);
+        TestSupport.flushWrites();
+    }
+
+    @After
+    public void tearDown() {
+        EventQueueManager.clearQueue(context);
+        EventQueueManager.configure(savedCapacity, savedPolicy);
+        TestSupport.flushWrites();
+        CallClock.setSource(TestSupport.HOST_CLOCK);
+    }
+
+    private static long stat(String name) {
+        Object value = EventQueueManager.getStats(context).get(name);
+        return value == null ? 0 : ((Number) value).longValue();
+    }
+
+    private static void assertQueued(String connectionId) {
+        List<EventQueueManager.QueuedEvent> events = EventQueueManager.getQueuedEvents(context);
+        assertEquals(1, events.size());
+        assertEquals(connectionId, events.get(0).connectionId);
+    }
+
+    @Test
+    public void queuedEventExpiresAtItsDeadline() {
+        long expiredBefore = stat("expiredCallAnswered");
+        EventQueueManager.queueEvent(context, "callAnswered", "expiry-deadline");
+
+        clock.advanceMillis(EventQueueManager.MAX_EVENT_AGE_MS - 1);
+        EventQueueManager.expireEvents();
+        assertQueued("expiry-deadline");
+        assertEquals(0, stat("expiredCallAnswered") - expiredBefore);
+
+        clock.advanceMillis(1);
+        EventQueueManager.expireEvents();
+        assertTrue(EventQueueManager.getQueuedEvents(context).isEmpty());
+        assertEquals(1, stat("expiredCallAnswered") - expiredBefore);
+    }
+
+    @Test
+    public void wallClockJumpsDoNotMoveQueueExpiry() {
+        long expiredBefore = stat("expiredCallRejected");
+        EventQueueManager.queueEvent(context, "callRejected", "expiry-wall-jump");
+
+        clock.setWallMillis(START_WALL_MILLIS + DAY_MS);
+        clock.advanceMillis(EventQueueManager.MAX_EVENT_AGE_MS - 1);
+        EventQueueManager.expireEvents();
+        assertQueued("expiry-wall-jump");
+
+        clock.setWallMillis(START_WALL_MILLIS - DAY_MS);
+        EventQueueManager.expireEvents();
+        assertQueued("expiry-wall-jump");
+        assertEquals(0, stat("expiredCallRejected") - expiredBefore);
+
+        clock.advanceMillis(1);
+        EventQueueManager.expireEvents();
+        assertTrue(EventQueueManager.getQueuedEvents(context).isEmpty());
+        assertEquals(1, stat("expiredCallRejected") - expiredBefore);
+    }
+
+    @Test
+    public void replayedEventAgeIsClampedWhenTheWallClockMovedBack() {
+        long now = CallClock.elapsedMillis();
+
+        // Persisted an hour "in the future": the wall clock has since been set back.
+        EventQueueManager.QueuedEvent fromFuture =
+            new EventQueueManager.QueuedEvent("callEnded", "replayed-future", CallClock.wallMillis() + 3_600_000L, 1);
+        assertEquals(now + EventQueueManager.MAX_EVENT_AGE_MS, fromFuture.getDeadline());
+
+        EventQueueManager.QueuedEvent tenSecondsOld =
+            new EventQueueManager.QueuedEvent("callEnded", "replayed-past", CallClock.wallMillis() - 10_000L, 2);
+        assertEquals(now + EventQueueManager.MAX_EVENT_AGE_MS - 10_000L, tenSecondsOld.getDeadline());
+    }
+
+    @Test
+    public void ringTimeoutFiresAtItsDeadline() {
+        MyConnectionService.armTimeoutDeadline();
+        assertEquals(MyConnectionService.CALL_TIMEOUT_MS, MyConnectionService.getTimeoutRemainingMillis());
+
+        clock.advanceMillis(MyConnectionService.CALL_TIMEOUT_MS - 1);
+        assertEquals(1, MyConnectionService.getTimeoutRemainingMillis());
+
+        clock.advanceMillis(1);
+        assertEquals(0, MyConnectionService.getTimeoutRemainingMillis());
+    }
+
+    @Test
+    public void wallClockJumpsDoNotMoveTheRingTimeout() {
+        MyConnectionService.armTimeoutDeadline();
+        clock.advanceMillis(10_000);
+
+        clock.setWallMillis(START_WALL_MILLIS + DAY_MS);
+        assertEquals(MyConnectionService.CALL_TIMEOUT_MS - 10_000, MyConnectionService.getTimeoutRemainingMillis());
+
+        clock.setWallMillis(START_WALL_MILLIS - DAY_MS);
+        assertEquals(MyConnectionService.CALL_TIMEOUT_MS - 10_000, MyConnectionService.getTimeoutRemainingMillis());
+
+        clock.advanceMillis(MyConnectionService.CALL_TIMEOUT_MS - 10_000);
+        assertEquals(0, MyConnectionService.getTimeoutRemainingMillis());
+    }
+}
@@ -38,6 +38,20 @@ export interface CallKitVoipPlugin {
 
   getCallMetrics(options: { uuid: string }): Promise<CallMetrics>;
 
+  setEventQueueConfig(options: EventQueueConfig): Promise<void>;
+
+  getEventQueueStats(): Promise<EventQueueStats>;
+
+  getPersistenceStats(): Promise<PersistenceStats>;
+
+  getRejectBackendStats(): Promise<RejectBackendStats>;
+
+  getLatencyHistograms(): Promise<LatencyHistograms>;
+
+  dumpFlightRecorder(): Promise<FlightRecorderDump>;
+
+  setMetricsExport(options: MetricsExportOptions): Promise<{ filePath?: string }>;
+
   addListener(
       eventName: 'registration',
       listenerFunc: (token:CallToken)   => void
@@ -77,6 +91,11 @@ export interface CallKitVoipPlugin {
       eventName: 'error',
       listenerFunc: (error: CallKitError) => void
   ): Promise<PluginListenerHandle> & PluginListenerHandle;
+
+  addListener(
+      eventName: 'callMetrics',
+      listenerFunc: (batch: CallMetricsBatch) => void
+  ): Promise<PluginListenerHandle> & PluginListenerHandle;
 }
 
 
@@ -135,4 +154,144 @@ export interface CallMetrics {
   endReason?: string;
   error?: string;
   retryCount?: number;
+  /** Milliseconds between the callAnswered/callRejected listener attaching and this call's queued event being delivered */
+  queueFlushLatencyMs?: number;
+}
+
+export type EventQueueOverflowPolicy = 'dropOldest' | 'dropNewest' | 'coalesce';
+
+export interface EventQueueConfig {
+  /** Maximum number of events kept while no JS listener is attached. Defaults to 64. */
+  capacity?: number;
+  /** What to do with a new event when the queue is full. Defaults to 'dropOldest'. 'coalesce' keeps only the latest event per call: each new event replaces the call's queued one, even below capacity. */
+  overflowPolicy?: EventQueueOverflowPolicy;
+}
+
+export interface EventQueueStats {
+  /** Events currently waiting for a JS listener */
+  queuedCount: number;
+  capacity: number;
+  overflowPolicy: EventQueueOverflowPolicy;
+  /** Events evicted or rejected because the queue was full */
+  droppedCount: number;
+  /** Events replaced by a newer event for the same call under the 'coalesce' policy */
+  coalescedCount: number;
+  /** Largest queue size seen in this process */
+  highWaterMark: number;
+  /** Events dropped because no listener attached before they expired */
+  expiredCount: number;
+  /** callAnswered events that expired, i.e. answers lost because JS loaded too late */
+  expiredCallAnswered?: number;
+  expiredCallRejected?: number;
+}
+
+export interface PersistenceStats {
+  /** Writes waiting on the background persistence thread */
+  queueDepth: number;
+  completedWrites: number;
+  /** Writes replaced by a newer write to the same record before reaching disk */
+  coalescedWrites: number;
+  failedWrites: number;
+  averageWriteLatencyMs: number;
+  maxWriteLatencyMs: number;
+}
+
+export type CircuitState = 'CLOSED' | 'OPEN' | 'HALF_OPEN';
+
+export interface CircuitBreakerStats {
+  state: CircuitState;
+  /** Times the circuit has opened since the app process started */
+  tripCount: number;
+  /** Requests refused while the circuit was open */
+  rejectedCalls: number;
+  /** Failure and slow-call rates over the last recordedCalls requests (at most 10) */
+  failureRatePercent: number;
+  slowCallRatePercent: number;
+  recordedCalls: number;
+}
+
+export interface RejectBackendStats {
+  /** Circuit breaker per reject API base URL */
+  backends: { [baseUrl: string]: CircuitBreakerStats };
+  /** Rejects waiting for an open circuit to let requests through again */
+  parkedRejects: number;
+  /** Parked rejects dropped because too many were waiting; they stay in the outbox and are retried later */
+  droppedParkedRejects: number;
+  /** Rejects stored on disk that the backend has not yet accepted */
+  pendingRejects: number;
+  deliveredRejects: number;
+  /** Sends of a stored reject after its first attempt */
+  retriedRejects: number;
+  /** Rejects dropped after a 4xx response, too many attempts or 24 hours */
+  abandonedRejects: number;
+  /** Rejects skipped because another reject path already notified the backend for the same call */
+  duplicateRejects: number;
+}
+
+/** Latencies in milliseconds, aggregated over every call since the app process started */
+export interface LatencyHistogram {
+  count: number;
+  p50: number;
+  p90: number;
+  p99: number;
+  max: number;
+}
+
+export interface LatencyHistograms {
+  /** FCM push received to addNewIncomingCall */
+  pushToIncomingCallAdded: LatencyHistogram;
+  /** FCM push received to the Telecom connection ringing */
+  pushToRinging: LatencyHistogram;
+  /** FCM push received to the incoming call notification being shown */
+  pushToNotificationShown: LatencyHistogram;
+  /** Ringing (or notification shown) to the user answering */
+  ringToAnswer: LatencyHistogram;
+  /** User answering to callAnswered reaching a JS listener */
+  answerToDelivered: LatencyHistogram;
+  /** User answering to callConnected */
+  answerToConnected: LatencyHistogram;
+  /** Reject DELETE over a connection kept warm by a recent exchange, such as the warm-up started on push */
+  rejectSendWarm: LatencyHistogram;
+  /** Reject DELETE that had to open a new connection */
+  rejectSendCold: LatencyHistogram;
+}
+
+export interface FlightRecorderDump {
+  /** Number of records the ring buffer holds before overwriting the oldest */
+  capacity: number;
+  /** Records written since the app process started, including overwritten ones */
+  recordedCount: number;
+  /** One record per line, oldest first: "<elapsedRealtime ms> <thread id> <connectionId hash> <event>" */
+  records: string;
+  /** Hash to connectionId for calls that are still registered */
+  calls: { [hash: string]: string };
+}
+
+export interface MetricsExportOptions {
+  /** Deliver batches to JS as 'callMetrics' events. Defaults to false. */
+  jsBridge?: boolean;
+  /** Append batches to a rotated line-delimited JSON file in the app's files directory. Defaults to false. */
+  file?: boolean;
+  /** Size at which the metrics file is rotated. Defaults to 262144, minimum 1. */
+  maxFileBytes?: number;
+  /** Maximum time between batches. Defaults to 60000, minimum 1000. */
+  flushIntervalMs?: number;
+  /** Completed calls that trigger a batch before the interval elapses. Defaults to 20. */
+  maxBatchSize?: number;
+}
+
+export interface CompletedCallMetrics extends CallMetrics {
+  connectionId: string;
+  pushToIncomingCallAddedMs?: number;
+  pushToRingingMs?: number;
+  pushToNotificationShownMs?: number;
+  ringToAnswerMs?: number;
+  answerToDeliveredMs?: number;
+  answerToConnectedMs?: number;
+}
+
+export interface CallMetricsBatch {
+  /** Calls that ended since the previous batch, oldest first */
+  calls: CompletedCallMetrics[];
+  histograms: LatencyHistograms;
 }
\ No newline at end of file
@@ -1,6 +1,6 @@
 import { WebPlugin } from '@capacitor/core';
 
-import type { CallKitVoipPlugin, PhoneAccountStatus, CallMetrics, CallToken, RejectCallConfig } from './definitions';
+import type { CallKitVoipPlugin, PhoneAccountStatus, CallMetrics, CallToken, RejectCallConfig, EventQueueConfig, EventQueueStats, PersistenceStats, RejectBackendStats, LatencyHistograms, LatencyHistogram, FlightRecorderDump, MetricsExportOptions } from './definitions';
 
 export class CallKitVoipWeb extends WebPlugin implements CallKitVoipPlugin {
   async register(): Promise<void> {
@@ -75,4 +75,73 @@ export class CallKitVoipWeb extends WebPlugin implements CallKitVoipPlugin {
     console.log('CallKitVoip.getCallMetrics - not supported on web');
     return {};
   }
+
+  async setEventQueueConfig(_options: EventQueueConfig): Promise<void> {
+    console.log('CallKitVoip.setEventQueueConfig - not supported on web');
+    return;
+  }
+
+  async getEventQueueStats(): Promise<EventQueueStats> {
+    console.log('CallKitVoip.getEventQueueStats - not supported on web');
+    return {
+      queuedCount: 0,
+      capacity: 0,
+      overflowPolicy: 'dropOldest',
+      droppedCount: 0,
+      coalescedCount: 0,
+      highWaterMark: 0,
+      expiredCount: 0
+    };
+  }
+
+  async getPersistenceStats(): Promise<PersistenceStats> {
+    console.log('CallKitVoip.getPersistenceStats - not supported on web');
+    return {
+      queueDepth: 0,
+      completedWrites: 0,
+      coalescedWrites: 0,
+      failedWrites: 0,
+      averageWriteLatencyMs: 0,
+      maxWriteLatencyMs: 0
+    };
+  }
+
+  async getRejectBackendStats(): Promise<RejectBackendStats> {
+    console.log('CallKitVoip.getRejectBackendStats - not supported on web');
+    return {
+      backends: {},
+      parkedRejects: 0,
+      droppedParkedRejects: 0,
+      pendingRejects: 0,
+      deliveredRejects: 0,
+      retriedRejects: 0,
+      abandonedRejects: 0,
+      duplicateRejects: 0
+    };
+  }
+
+  async getLatencyHistograms(): Promise<LatencyHistograms> {
+    console.log('CallKitVoip.getLatencyHistograms - not supported on web');
+    const empty: LatencyHistogram = { count: 0, p50: 0, p90: 0, p99: 0, max: 0 };
+    return {
+      pushToIncomingCallAdded: empty,
+      pushToRinging: empty,
+      pushToNotificationShown: empty,
+      ringToAnswer: empty,
+      answerToDelivered: empty,
+      answerToConnected: empty,
+      rejectSendWarm: empty,
+      rejectSendCold: empty
+    };
+  }
+
+  async dumpFlightRecorder(): Promise<FlightRecorderDump> {
+    console.log('CallKitVoip.dumpFlightRecorder - not supported on web');
+    return { capacity: 0, recordedCount: 0, records: '', calls: {} };
+  }
+
+  async setMetricsExport(_options: MetricsExportOptions): Promise<{ filePath?: string }> {
+    console.log('CallKitVoip.setMetricsExport - not supported on web');
+    return {};
+  }
 }